@@ -1,6 +1,9 @@
 plugins {
     application
+    // StubImageServer is shared by the tests and the upload benchmarks
+    `java-test-fixtures`
     id("com.gradleup.shadow") version "8.3.5"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "io.github.canary-prism"
@@ -14,6 +17,8 @@ java {
 
 application {
     mainClass = "canaryprism.presence.apple.music.Main"
+    // the compositing kernel falls back to scalar loops without the vector api
+    applicationDefaultJvmArgs = listOf("--add-modules=jdk.incubator.vector")
 }
 
 repositories {
@@ -44,14 +49,57 @@ dependencies {
 
     implementation(libs.caffeine)
 
+    // the only webp writer for ImageIO, bundles libwebp for macos, linux and windows
+    runtimeOnly(libs.imageio.webp)
+
     testImplementation(platform(libs.junit.bom))
     testImplementation(libs.junit.jupiter)
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    jmhImplementation(testFixtures(project))
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.compilerArgs.add("--add-modules=jdk.incubator.vector")
+    // VectorRows is the only user of the incubator module, its "using incubating module" warning is expected
+    // on every compile so it's silenced rather than left to bury the warnings that matter
+    options.compilerArgs.add("-Xlint:-incubating")
 }
 
 tasks.test {
     useJUnitPlatform()
+    // so CompositeKernelTest checks the vector rows and not only the scalar fallback
+    jvmArgs("--add-modules=jdk.incubator.vector")
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    profilers.add("gc")
+    resultFormat = "JSON"
+    jvmArgs.add("--add-modules=jdk.incubator.vector")
 }
 
 tasks.shadowJar {
     mergeServiceFiles()
-}
\ No newline at end of file
+}
+
+// records the classes a training run loads into a class data sharing archive next to the shadow jar, start the
+// jar with -XX:SharedArchiveFile pointing at it to skip loading them at startup
+val appCds by tasks.registering(JavaExec::class) {
+    group = "distribution"
+    description = "Creates an AppCDS archive for the shadow jar."
+
+    val jar = tasks.shadowJar.flatMap { it.archiveFile }
+    val archive = jar.map { it.asFile.resolveSibling(it.asFile.nameWithoutExtension + ".jsa") }
+
+    classpath(jar)
+    mainClass = application.mainClass
+    args("train")
+    jvmArgs(application.applicationDefaultJvmArgs)
+    javaLauncher = javaToolchains.launcherFor(java.toolchain)
+    outputs.file(archive)
+
+    doFirst {
+        jvmArgs("-XX:ArchiveClassesAtExit=${archive.get()}")
+    }
+}
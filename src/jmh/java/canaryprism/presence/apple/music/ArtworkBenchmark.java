@@ -0,0 +1,53 @@
+package canaryprism.presence.apple.music;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ArtworkBenchmark {
+    
+    @Param({ "600x600", "1400x1400", "3000x3000", "1400x1000" })
+    public String size;
+    
+    @Param({ "CONVOLVE", "BOX", "DOWNSAMPLED" })
+    public BlurEngine.Mode blur_mode;
+    
+    @Param({ "LOSSLESS", "BALANCED", "SMALL" })
+    public OutputPolicy.Preset output;
+    
+    private ArtworkProcessor processor;
+    private byte[] data;
+    private BufferedImage image;
+    private ExecutionLanes lanes;
+    
+    @Setup
+    public void setup() {
+        lanes = new ExecutionLanes();
+        processor = new ArtworkProcessor(blur_mode.engine(), output.policy(), new MemoryBudget(MemoryBudget.defaultBytes()));
+        data = SyntheticArtwork.encoded(SyntheticArtwork.width(size), SyntheticArtwork.height(size));
+        image = SyntheticArtwork.image(SyntheticArtwork.width(size), SyntheticArtwork.height(size));
+    }
+    
+    @Benchmark
+    public byte[] optimiseImage() throws IOException {
+        return processor.optimiseImage(data, "artwork", lanes.cpu());
+    }
+    
+    @Benchmark
+    public BufferedImage blur() {
+        return processor.blur(image);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        lanes.close();
+    }
+}
@@ -0,0 +1,106 @@
+package canaryprism.presence.apple.music;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * per image composite time of java2d against the kernel, setup checks the kernel's pixels against java2d's and
+ * fails if any channel is off by more than {@link #TOLERANCE}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompositeBenchmark {
+    
+    // java2d rounds its bilinear weights differently
+    private static final int TOLERANCE = 2;
+    
+    public enum Implementation {
+        JAVA2D,
+        SCALAR,
+        VECTOR
+    }
+    
+    @Param({ "600x600", "1400x1400", "1400x1000" })
+    public String size;
+    
+    @Param({ "JAVA2D", "SCALAR", "VECTOR" })
+    public Implementation implementation;
+    
+    private BufferedImage art;
+    private BufferedImage blurred;
+    private int dimension;
+    private BufferedImage canvas;
+    private int[] pixels;
+    private CompositeKernel.Rows rows;
+    private ExecutionLanes lanes;
+    
+    @Setup
+    public void setup() {
+        lanes = new ExecutionLanes();
+        art = SyntheticArtwork.image(SyntheticArtwork.width(size), SyntheticArtwork.height(size));
+        dimension = Math.max(art.getWidth(), art.getHeight());
+        blurred = BlurEngine.Mode.BOX.engine().blur(art, ArtworkProcessor.BLUR_RADIUS);
+        canvas = new BufferedImage(dimension, dimension, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        rows = switch (implementation) {
+            case JAVA2D -> null;
+            case SCALAR -> new CompositeKernel.ScalarRows();
+            case VECTOR -> VectorRows.create();
+        };
+        if (implementation != Implementation.JAVA2D && rows == null)
+            throw new IllegalStateException("no " + implementation + " rows on this cpu");
+        
+        if (rows != null) {
+            composite();
+            var expected = new BufferedImage(dimension, dimension, BufferedImage.TYPE_INT_RGB);
+            java2d(expected);
+            var reference = ((DataBufferInt) expected.getRaster().getDataBuffer()).getData();
+            var difference = 0;
+            for (int i = 0; i < reference.length; i++)
+                for (int shift = 0; shift < 24; shift += 8)
+                    difference = Math.max(difference, Math.abs(((pixels[i] >> shift) & 0xff) - ((reference[i] >> shift) & 0xff)));
+            System.out.printf("%n%s %s differs from java2d by at most %d%n", implementation, size, difference);
+            if (difference > TOLERANCE)
+                throw new IllegalStateException(implementation + " differs from java2d by " + difference);
+        }
+    }
+    
+    @Benchmark
+    public int[] composite() {
+        if (rows == null)
+            java2d(canvas);
+        else
+            CompositeKernel.compose(pixels, dimension, blurred, art, rows, lanes.cpu());
+        return pixels;
+    }
+    
+    @TearDown
+    public void tearDown() {
+        lanes.close();
+    }
+    
+    // what ArtworkProcessor did before the kernel
+    private void java2d(BufferedImage image) {
+        var g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            
+            var scale = (double) dimension / Math.min(blurred.getWidth(), blurred.getHeight());
+            var scaled_width = (int) (blurred.getWidth() * scale);
+            var scaled_height = (int) (blurred.getHeight() * scale);
+            g.drawImage(blurred, (dimension - scaled_width) / 2, (dimension - scaled_height) / 2, scaled_width, scaled_height, null);
+            
+            g.drawImage(art, (dimension - art.getWidth()) / 2, (dimension - art.getHeight()) / 2, null);
+        } finally {
+            g.dispose();
+        }
+    }
+}
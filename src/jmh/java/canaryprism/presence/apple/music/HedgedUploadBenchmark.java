@@ -0,0 +1,82 @@
+package canaryprism.presence.apple.music;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * uploads against two local stubs of an image host, one that's usually fast but sometimes stalls or fails and one
+ * that's steady but slower. sample time shows the tail latency of uploading to the flaky one alone against hedging
+ * across both
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 20)
+@Fork(1)
+public class HedgedUploadBenchmark {
+    
+    private static final String URL = "https://iili.io/stub.png";
+    
+    @Param({ "single", "hedged" })
+    public String hosts;
+    
+    // chance of the flaky host stalling and of it answering 503
+    @Param({ "0.05" })
+    public double stall;
+    
+    @Param({ "0.02" })
+    public double errors;
+    
+    private StubImageServer flaky;
+    private StubImageServer steady;
+    private ExecutorService io;
+    private ImageHost host;
+    private byte[] data;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        var random = new Random(42);
+        flaky = new StubImageServer((_, _) -> {
+            double roll;
+            synchronized (random) {
+                roll = random.nextDouble();
+            }
+            if (roll < errors)
+                return StubImageServer.Response.status(503);
+            return StubImageServer.Response.ok(URL).after(Duration.ofMillis((roll < errors + stall) ? 2000 : 40));
+        }, false);
+        steady = new StubImageServer((_, _) -> StubImageServer.Response.ok(URL).after(Duration.ofMillis(150)), false);
+        
+        io = Executors.newVirtualThreadPerTaskExecutor();
+        var client = ImageUploader.newClient(io);
+        var flaky_host = new ImageUploader(client, flaky.endpoint(), "key");
+        var steady_host = new ImageUploader(client, steady.endpoint(), "key");
+        host = switch (hosts) {
+            case "single" -> flaky_host;
+            case "hedged" -> new HedgedImageHost(List.of(flaky_host, steady_host));
+            default -> throw new IllegalArgumentException(hosts);
+        };
+        
+        data = SyntheticArtwork.encoded(600, 600);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        flaky.close();
+        steady.close();
+        io.shutdownNow();
+    }
+    
+    @Benchmark
+    public String upload() throws IOException, InterruptedException {
+        return host.upload(data, "benchmark");
+    }
+}
@@ -0,0 +1,91 @@
+package canaryprism.presence.apple.music;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ImageCacheBenchmark {
+    
+    @Param({ "1000", "10000", "100000" })
+    public int entries;
+    
+    private Random random;
+    private Map<String, String> cache;
+    private Path directory;
+    private ImageCacheStore loaded_store;
+    private ImageCacheStore fresh_store;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        random = new Random(entries);
+        cache = HashMap.newHashMap(entries);
+        for (int i = 0; i < entries; i++)
+            cache.put(id(), url());
+        
+        directory = Files.createTempDirectory("image-cache");
+        loaded_store = new ImageCacheStore(directory.resolve("loaded"));
+        loaded_store.save(cache);
+    }
+    
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        Files.deleteIfExists(directory.resolve("fresh"));
+        fresh_store = new ImageCacheStore(directory.resolve("fresh"));
+        
+        // a cache save normally only sees a handful of new tracks since the last one
+        var changed = Math.max(1, entries / 100);
+        var iterator = cache.keySet().iterator();
+        for (int i = 0; i < changed && iterator.hasNext(); i++) {
+            iterator.next();
+            iterator.remove();
+        }
+        for (int i = 0; i < changed; i++)
+            cache.put(id(), url());
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (var path : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+    
+    @Benchmark
+    public void saveImageCache() {
+        fresh_store.save(cache);
+    }
+    
+    @Benchmark
+    public void saveImageCacheIncremental() {
+        loaded_store.save(cache);
+    }
+    
+    @Benchmark
+    public Map<String, String> loadImageCache() {
+        return loaded_store.load();
+    }
+    
+    // same shape as a Music persistent id
+    private String id() {
+        return "%016X".formatted(random.nextLong());
+    }
+    
+    // same shape as a freeimage.host url
+    private String url() {
+        return "https://iili.io/" + Long.toString(random.nextLong() >>> 1, 36) + ".png";
+    }
+}
@@ -0,0 +1,27 @@
+package canaryprism.presence.apple.music;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KernelBenchmark {
+    
+    @Param({ "100" })
+    public float radius;
+    
+    @Benchmark
+    public ConvolveBlurEngine.KernelTuple makeKernels() {
+        return ConvolveBlurEngine.makeKernels(radius);
+    }
+    
+    @Benchmark
+    public int[] boxSizes() {
+        return BoxBlurEngine.boxSizes(radius / 3, 3);
+    }
+}
@@ -0,0 +1,141 @@
+package canaryprism.presence.apple.music;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * time from opening the artwork cache to the first presence reaching discord, with the cache loaded before polling
+ * starts like it used to be or in the background. nothing is uploaded, the playing track's artwork is already in
+ * the cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    
+    private static final String FALLBACK = "https://example.com/fallback.png";
+    private static final long PLAYING = 1;
+    
+    // the cache holds at most ArtworkCache.MAXIMUM_SIZE tracks
+    @Param({ "200", "2000" })
+    public int entries;
+    
+    @Param({ "sync", "async" })
+    public String load;
+    
+    private Path directory;
+    private ExecutionLanes lanes;
+    private ImageUploader uploader;
+    private ArtworkProcessor processor;
+    private PlayerSource player;
+    
+    private ArtworkCache cache;
+    private CompletableFuture<Presence> first_sent;
+    private ActivityQueue queue;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("startup");
+        lanes = new ExecutionLanes();
+        uploader = new ImageUploader(ImageUploader.newClient(lanes.io()), URI.create("http://127.0.0.1:9/upload"), "key");
+        processor = new ArtworkProcessor(BlurEngine.Mode.DEFAULT.engine());
+        
+        var artwork = SyntheticArtwork.encoded(600, 600);
+        player = new PlayerSource() {
+            @Override
+            public PlayerSnapshot snapshot() {
+                // nothing here polls, but anything that does sees an idle player rather than an exception
+                return new PlayerSnapshot(Instant.now(), PlayerSnapshot.State.STOPPED, 0, null);
+            }
+            
+            @Override
+            public Optional<byte[]> artwork(long persistent_id) {
+                return Optional.of(artwork);
+            }
+            
+            @Override
+            public List<Long> upcoming(int count) {
+                return List.of();
+            }
+            
+            @Override
+            public List<Long> tracks(String playlist) {
+                return List.of();
+            }
+        };
+        
+        var random = new Random(entries);
+        var seed = open();
+        seed.load(directory.resolve("images"));
+        for (int i = 1; i < entries; i++) {
+            var digest = new byte[32];
+            random.nextBytes(digest);
+            seed.put(new StoredTrack(PLAYING + i), ArtworkCache.digest(digest), "https://example.com/" + i + ".png");
+        }
+        seed.put(new StoredTrack(PLAYING), ArtworkCache.digest(artwork), "https://example.com/playing.png");
+        seed.save();
+    }
+    
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        first_sent = new CompletableFuture<>();
+        queue = new ActivityQueue(new PresenceSink() {
+            @Override
+            public void update(Presence presence) {
+                first_sent.complete(presence);
+            }
+            
+            @Override
+            public void clear() {}
+        }, lanes.callbacks(), new TokenBucket(1, 5), Duration.ofSeconds(2));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        lanes.close();
+        try (var files = Files.walk(directory)) {
+            for (var path : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+    
+    @Benchmark
+    public Presence firstPresence() {
+        cache = open();
+        if (load.equals("sync"))
+            cache.load(directory.resolve("images"));
+        else
+            cache.loadAsync(directory.resolve("images"), lanes.persistence());
+        
+        var url = cache.get(new StoredTrack(PLAYING)).getNow(FALLBACK);
+        var now = Instant.now();
+        queue.update(new Presence("track", "artist", url, "album", now, now.plusSeconds(180)));
+        return first_sent.join();
+    }
+    
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        // a background load still running would be timed by the next invocation
+        cache.get(new StoredTrack(PLAYING)).join();
+    }
+    
+    private ArtworkCache open() {
+        return new ArtworkCache(player, processor, uploader, new ImageCacheStore(directory.resolve("image_cache")),
+                new ProcessedImageCache(directory.resolve("processed"), "benchmark", 64 * 1024 * 1024), lanes.io(), lanes.cpu());
+    }
+}
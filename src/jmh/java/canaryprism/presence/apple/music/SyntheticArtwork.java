@@ -0,0 +1,53 @@
+package canaryprism.presence.apple.music;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+final class SyntheticArtwork {
+    
+    private SyntheticArtwork() {}
+    
+    static BufferedImage image(int width, int height) {
+        var random = new Random(((long) width << 32) | height);
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        var g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xffffff)), width, height, new Color(random.nextInt(0xffffff))));
+            g.fillRect(0, 0, width, height);
+            for (int i = 0; i < 200; i++) {
+                g.setColor(new Color(random.nextInt(), true));
+                var size = random.nextInt(Math.max(1, Math.min(width, height) / 3));
+                g.fillOval(random.nextInt(width), random.nextInt(height), size, size);
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+    
+    // album art from the Music library is almost always jpeg
+    static byte[] encoded(int width, int height) {
+        try (var baos = new ByteArrayOutputStream()) {
+            ImageIO.write(image(width, height), "jpg", baos);
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    static int width(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+    
+    static int height(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+}
@@ -0,0 +1,83 @@
+package canaryprism.presence.apple.music;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lookup cost of the track keys, before this the key was a hex string that was either read from a file name or
+ * fetched over AppleScript on every hashCode and equals, the AppleScript half can only be measured against Music
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrackKeyBenchmark {
+    
+    private static final int ENTRIES = ArtworkCache.MAXIMUM_SIZE;
+    
+    private long[] ids;
+    private String[] hex_ids;
+    private int index;
+    
+    private Cache<StringTrack, String> string_cache;
+    private Cache<StoredTrack, String> long_cache;
+    private Map<Long, String> boxed_map;
+    private LongObjectMap<String> primitive_map;
+    
+    @Setup
+    public void setup() {
+        var random = new Random(0);
+        ids = new long[ENTRIES];
+        hex_ids = new String[ENTRIES];
+        string_cache = Caffeine.newBuilder().maximumSize(ENTRIES).build();
+        long_cache = Caffeine.newBuilder().maximumSize(ENTRIES).build();
+        boxed_map = new HashMap<>();
+        primitive_map = new LongObjectMap<>(ENTRIES);
+        
+        for (int i = 0; i < ENTRIES; i++) {
+            ids[i] = random.nextLong();
+            hex_ids[i] = TrackContainer.formatId(ids[i]);
+            var url = "https://iili.io/" + i + ".png";
+            string_cache.put(new StringTrack(hex_ids[i]), url);
+            long_cache.put(new StoredTrack(ids[i]), url);
+            boxed_map.put(ids[i], url);
+            primitive_map.put(ids[i], url);
+        }
+    }
+    
+    private int next() {
+        return index = (index + 1) & (ENTRIES - 1);
+    }
+    
+    @Benchmark
+    public String stringKeyedCache() {
+        // a new key per lookup, like the poll loop did
+        return string_cache.getIfPresent(new StringTrack(hex_ids[next()]));
+    }
+    
+    @Benchmark
+    public String longKeyedCache() {
+        return long_cache.getIfPresent(new StoredTrack(ids[next()]));
+    }
+    
+    @Benchmark
+    public String boxedMap() {
+        return boxed_map.get(ids[next()]);
+    }
+    
+    @Benchmark
+    public String primitiveMap() {
+        return primitive_map.get(ids[next()]);
+    }
+    
+    // the shape of the old StoredTrack
+    private record StringTrack(String id) {}
+}
@@ -0,0 +1,108 @@
+package canaryprism.presence.apple.music;
+
+import com.github.mizosoft.methanol.MultipartBodyPublisher;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * uploads against a local stub of the image host, run with the gc profiler for allocation per upload. peak
+ * heap per upload is printed at the end of each trial
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+    
+    @Param({ "1400x1400", "3000x3000" })
+    public String size;
+    
+    private StubImageServer server;
+    private ExecutorService io;
+    private HttpClient client;
+    private URI endpoint;
+    private ImageUploader uploader;
+    private byte[] data;
+    
+    private List<MemoryPoolMXBean> heap_pools;
+    private long peak_heap;
+    private long total_peak_heap;
+    private int uploads;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new StubImageServer((_, _) -> StubImageServer.Response.ok("https://iili.io/stub.png"), false);
+        
+        endpoint = server.endpoint();
+        io = Executors.newVirtualThreadPerTaskExecutor();
+        client = ImageUploader.newClient(io);
+        uploader = new ImageUploader(client, endpoint, "key");
+        
+        data = SyntheticArtwork.encoded(SyntheticArtwork.width(size), SyntheticArtwork.height(size));
+        
+        heap_pools = ManagementFactory.getMemoryPoolMXBeans()
+                .stream()
+                .filter((pool) -> pool.getType() == MemoryType.HEAP)
+                .toList();
+    }
+    
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        heap_pools.forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+    
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        var peak = heap_pools.stream()
+                .mapToLong((pool) -> pool.getPeakUsage().getUsed())
+                .sum();
+        peak_heap = Math.max(peak_heap, peak);
+        total_peak_heap += peak;
+        uploads++;
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+        client.close();
+        io.close();
+        System.out.printf("%nimage %d KiB, peak heap per upload: max %d KiB, mean %d KiB%n",
+                data.length / 1024, peak_heap / 1024, total_peak_heap / Math.max(1, uploads) / 1024);
+    }
+    
+    @Benchmark
+    public String upload() throws IOException, InterruptedException {
+        return uploader.upload(data, "benchmark");
+    }
+    
+    // the upload as it was, base64 text part and a blocking send
+    @Benchmark
+    public String uploadBase64() throws IOException, InterruptedException {
+        var encoded = Base64.getMimeEncoder().encodeToString(data);
+        var form = MultipartBodyPublisher.newBuilder()
+                .textPart("source", encoded)
+                .build();
+        
+        var request = HttpRequest.newBuilder(endpoint)
+                .header("Content-Type", form.mediaType().toString())
+                .POST(form)
+                .build();
+        
+        return client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+}
@@ -0,0 +1,127 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * outbound queue in front of another sink that only sends what would change what's shown
+ * <p>
+ * updates are coalesced so only the latest one waiting is sent, one that looks like the last one sent is dropped,
+ * and sends are held to the rate of {@code limit} since discord throttles activity updates and drops bursts.
+ * {@code executor} has to be single threaded, it's where the wrapped sink is called from
+ */
+public final class ActivityQueue implements PresenceSink {
+    
+    private static final Logger log = LoggerFactory.getLogger(ActivityQueue.class);
+    
+    private final PresenceSink sink;
+    private final ScheduledExecutorService executor;
+    private final TokenBucket limit;
+    private final Duration tolerance;
+    
+    private final Object lock = new Object();
+    
+    // guarded by lock, a null pending presence is a clear
+    private Presence pending;
+    private boolean has_pending;
+    private long pending_since;
+    private boolean draining;
+    
+    // only touched from the executor
+    private Presence last_sent;
+    private boolean sent;
+    private boolean sent_first;
+    
+    public ActivityQueue(PresenceSink sink, ScheduledExecutorService executor, TokenBucket limit, Duration tolerance) {
+        this.sink = sink;
+        this.executor = executor;
+        this.limit = limit;
+        this.tolerance = tolerance;
+    }
+    
+    @Override
+    public void update(Presence presence) {
+        submit(presence);
+    }
+    
+    @Override
+    public void clear() {
+        submit(null);
+    }
+    
+    private void submit(Presence presence) {
+        synchronized (lock) {
+            if (has_pending)
+                Metrics.get().increment(Metrics.Counter.PRESENCE_COALESCED);
+            else
+                pending_since = System.nanoTime();
+            pending = presence;
+            has_pending = true;
+            if (draining)
+                return;
+            draining = true;
+        }
+        executor.execute(this::drain);
+    }
+    
+    private void drain() {
+        Presence presence;
+        long since;
+        synchronized (lock) {
+            if (sent && unchanged(pending)) {
+                pending = null;
+                has_pending = false;
+                draining = false;
+                Metrics.get().increment(Metrics.Counter.PRESENCE_UNCHANGED);
+                return;
+            }
+            if (!limit.tryAcquire()) {
+                // anything submitted in the meantime replaces what's pending and goes out with this drain
+                executor.schedule(this::drain, limit.nanosUntilAvailable(), TimeUnit.NANOSECONDS);
+                return;
+            }
+            presence = pending;
+            since = pending_since;
+            pending = null;
+            has_pending = false;
+            draining = false;
+        }
+        
+        Metrics.get().recordSince(Metrics.Stage.PRESENCE_QUEUE, since);
+        var start = System.nanoTime();
+        try {
+            if (presence == null)
+                sink.clear();
+            else
+                sink.update(presence);
+            last_sent = presence;
+            sent = true;
+        } catch (RuntimeException e) {
+            // whatever is shown now is unknown, so the next update goes out even if it looks the same
+            sent = false;
+            log.warn("failed to send presence: ", e);
+            return;
+        }
+        var metrics = Metrics.get();
+        metrics.recordSince(Metrics.Stage.UPDATE_ACTIVITY, start);
+        metrics.increment(Metrics.Counter.PRESENCE_UPDATES);
+        
+        if (!sent_first && presence != null) {
+            sent_first = true;
+            var uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            metrics.record(Metrics.Stage.STARTUP_TO_PRESENCE, TimeUnit.MILLISECONDS.toNanos(uptime));
+            log.info("first presence sent {} ms after startup", uptime);
+        }
+    }
+    
+    private boolean unchanged(Presence presence) {
+        if (presence == null || last_sent == null)
+            return presence == last_sent;
+        return presence.looksLike(last_sent, tolerance);
+    }
+}
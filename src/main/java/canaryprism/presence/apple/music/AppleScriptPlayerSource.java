@@ -0,0 +1,221 @@
+package canaryprism.presence.apple.music;
+
+import com.tagtraum.japlscript.execution.ScriptExecutor;
+import com.tagtraum.japlscript.language.Tdta;
+import com.tagtraum.macos.music.Application;
+import com.tagtraum.macos.music.Playlist;
+import com.tagtraum.macos.music.Track;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * reads the whole snapshot with a single script instead of one apple event per property
+ */
+public final class AppleScriptPlayerSource implements PlayerSource {
+    
+    private static final String SNAPSHOT_SCRIPT = """
+            tell application "Music"
+                set player_state to player state as text
+                try
+                    set current to current track
+                    return {player_state, player position, id of current, persistent ID of current, ¬
+                        name of current, artist of current, album of current, finish of current}
+                on error
+                    return {player_state}
+                end try
+            end tell
+            """;
+    
+    // shuffle makes the next track unpredictable
+    private static final String UPCOMING_SCRIPT = """
+            tell application "Music"
+                if shuffle enabled then return {}
+                try
+                    set source_playlist to current playlist
+                    set first_index to (index of current track) + 1
+                    set last_index to first_index + %d - 1
+                    set track_count to count of tracks of source_playlist
+                    if last_index > track_count then set last_index to track_count
+                    set upcoming to {}
+                    repeat with i from first_index to last_index
+                        set end of upcoming to persistent ID of track i of source_playlist
+                    end repeat
+                    return upcoming
+                on error
+                    return {}
+                end try
+            end tell
+            """;
+    
+    private static final String TRACKS_SCRIPT = """
+            tell application "Music"
+                return persistent ID of every track of %s
+            end tell
+            """;
+    
+    private final Application app;
+    
+    public AppleScriptPlayerSource(Application app) {
+        this.app = app;
+    }
+    
+    @Override
+    public PlayerSnapshot snapshot() {
+        var result = execute(SNAPSHOT_SCRIPT);
+        var timestamp = Instant.now();
+        
+        var values = parseList(result);
+        try {
+            var state = PlayerSnapshot.State.parse((String) values.getFirst());
+            if (values.size() < 8)
+                return new PlayerSnapshot(timestamp, state, 0, null);
+            
+            var track = new PlayerSnapshot.TrackInfo(
+                    ((Number) values.get(2)).intValue(),
+                    TrackContainer.parseId((String) values.get(3)),
+                    (String) values.get(4),
+                    (String) values.get(5),
+                    (String) values.get(6),
+                    ((Number) values.get(7)).doubleValue()
+            );
+            return new PlayerSnapshot(timestamp, state, ((Number) values.get(1)).doubleValue(), track);
+        } catch (ClassCastException | IllegalArgumentException e) {
+            throw new PlayerSourceException("unexpected player state '" + result + "'", e);
+        }
+    }
+    
+    @Override
+    public Optional<byte[]> artwork(long persistent_id) {
+        var track = app.getCurrentTrack();
+        if (track == null || TrackContainer.parseId(track.getPersistentId()) != persistent_id) {
+            // not playing, look for it where upcoming() or tracks() found it
+            track = findTrack(app.getCurrentPlaylist(), persistent_id);
+            if (track == null)
+                track = findTrack(libraryPlaylist(), persistent_id);
+            if (track == null)
+                return Optional.empty();
+        }
+        
+        var artworks = track.getArtworks();
+        if (artworks.length == 0)
+            return Optional.empty();
+        return Optional.of(artworks[0].getRawData().cast(Tdta.class).getTdta());
+    }
+    
+    @Override
+    public List<Long> upcoming(int count) {
+        if (count <= 0)
+            return List.of();
+        
+        var result = execute(UPCOMING_SCRIPT.formatted(count));
+        try {
+            return parseList(result).stream()
+                    .map((id) -> TrackContainer.parseId((String) id))
+                    .toList();
+        } catch (ClassCastException | IllegalArgumentException e) {
+            throw new PlayerSourceException("unexpected upcoming tracks '" + result + "'", e);
+        }
+    }
+    
+    @Override
+    public List<Long> tracks(String playlist) {
+        var reference = (playlist == null) ? "library playlist 1" : "playlist \"" + escape(playlist) + "\"";
+        var result = execute(TRACKS_SCRIPT.formatted(reference));
+        try {
+            return parseList(result).stream()
+                    .map((id) -> TrackContainer.parseId((String) id))
+                    .toList();
+        } catch (ClassCastException | IllegalArgumentException e) {
+            throw new PlayerSourceException("unexpected tracks '" + result + "'", e);
+        }
+    }
+    
+    private Playlist libraryPlaylist() {
+        var sources = app.getSources();
+        if (sources.length == 0)
+            return null;
+        var playlists = sources[0].getLibraryPlaylists();
+        return (playlists.length == 0) ? null : playlists[0];
+    }
+    
+    private static Track findTrack(Playlist playlist, long persistent_id) {
+        if (playlist == null)
+            return null;
+        var matches = playlist.getTracks("persistent ID is \"" + TrackContainer.formatId(persistent_id) + "\"");
+        return (matches.length == 0) ? null : matches[0];
+    }
+    
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+    
+    private static String execute(String script) {
+        try {
+            var executor = ScriptExecutor.newInstance();
+            executor.setScript(script);
+            return executor.execute();
+        } catch (Exception e) {
+            throw new PlayerSourceException("failed to run script against Music", e);
+        }
+    }
+    
+    /**
+     * parses a flat applescript list literal like {@code {"playing", 12.5, 1234, missing value}}, strings become
+     * {@link String}s, numbers become {@link Long}s or {@link Double}s and anything else is kept as its source text
+     */
+    static List<Object> parseList(String text) {
+        var values = new ArrayList<>();
+        text = text.strip();
+        if (!text.startsWith("{"))
+            throw new PlayerSourceException("expected a list but got '" + text + "'");
+        
+        var i = 1;
+        while (i < text.length()) {
+            var c = text.charAt(i);
+            if (c == '}') {
+                break;
+            } else if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                var string = new StringBuilder();
+                i++;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    c = text.charAt(i++);
+                    if (c == '\\' && i < text.length()) {
+                        c = text.charAt(i++);
+                        c = switch (c) {
+                            case 'n' -> '\n';
+                            case 'r' -> '\r';
+                            case 't' -> '\t';
+                            default -> c;
+                        };
+                    }
+                    string.append(c);
+                }
+                i++;
+                values.add(string.toString());
+            } else {
+                var start = i;
+                while (i < text.length() && text.charAt(i) != ',' && text.charAt(i) != '}')
+                    i++;
+                values.add(parseBare(text.substring(start, i).strip()));
+            }
+        }
+        return values;
+    }
+    
+    private static Object parseBare(String token) {
+        try {
+            return Long.parseLong(token);
+        } catch (NumberFormatException _) {
+        }
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException _) {
+        }
+        return token;
+    }
+}
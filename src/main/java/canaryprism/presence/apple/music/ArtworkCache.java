@@ -0,0 +1,417 @@
+package canaryprism.presence.apple.music;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * two level cache from track to artwork url
+ * <p>
+ * tracks map to a digest of their raw artwork bytes and digests map to the uploaded url, so every track of an
+ * album shares one upload. concurrent loads of the same artwork coalesce onto the one future in
+ * {@code artwork_cache}
+ * <p>
+ * loading can happen in the background with {@link #loadAsync}. lookups in the meantime read the artwork as usual
+ * but wait for loading to finish before looking up its digest, so artwork that was already uploaded never is again
+ * <p>
+ * the in-memory caches are bounded but the store isn't. everything it holds is kept as it was last saved, so tracks
+ * and artwork evicted from memory are still found there and saving never turns an eviction into a removal
+ */
+public final class ArtworkCache {
+    
+    private static final Logger log = LoggerFactory.getLogger(ArtworkCache.class);
+    
+    public static final int MAXIMUM_SIZE = 2048;
+    
+    // store keys, entries persisted before artwork digests existed are a bare track id mapped to a url
+    private static final String TRACK_PREFIX = "track:";
+    private static final String ARTWORK_PREFIX = "artwork:";
+    
+    private final PlayerSource player;
+    private final ArtworkProcessor processor;
+    private final ImageHost uploader;
+    private final ImageCacheStore store;
+    private final ProcessedImageCache processed_cache;
+    private final Executor io;
+    private final Executor cpu;
+    
+    // guarded by itself
+    private final LongObjectMap<String> track_digests = new LongObjectMap<>(MAXIMUM_SIZE);
+    
+    private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+    
+    // the entries in the store as of the last save, replaced as a whole
+    private volatile Map<String, String> stored = Map.of();
+    
+    // the loads still wanting each digest's upload, a digest is only in here while at least one is
+    private final ConcurrentHashMap<String, Set<CompletableFuture<String>>> waiters = new ConcurrentHashMap<>();
+    
+    private final AsyncCache<String, String> artwork_cache = Caffeine.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .recordStats()
+            .buildAsync();
+    
+    private final AsyncLoadingCache<TrackContainer, String> track_cache = Caffeine.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .recordStats()
+            .<TrackContainer, String>removalListener((container, _, cause) -> {
+                if (container != null && cause.wasEvicted())
+                    removeDigest(container.getTrackId());
+            })
+            .buildAsync(this::loadTrack);
+    
+    /**
+     * @param io where artwork is read from the player
+     * @param cpu where artwork is processed
+     */
+    public ArtworkCache(PlayerSource player, ArtworkProcessor processor, ImageHost uploader, ImageCacheStore store,
+                        ProcessedImageCache processed_cache, Executor io, Executor cpu) {
+        this.player = player;
+        this.processor = processor;
+        this.uploader = uploader;
+        this.store = store;
+        this.processed_cache = processed_cache;
+        this.io = io;
+        this.cpu = cpu;
+        
+        var metrics = Metrics.get();
+        metrics.registerCache("track", () -> track_cache.synchronous().stats());
+        metrics.registerCache("url", () -> artwork_cache.synchronous().stats());
+        metrics.registerCache("disk", processed_cache::stats);
+        metrics.registerGauge("disk cache bytes", processed_cache::weightedSize);
+    }
+    
+    public CompletableFuture<String> get(TrackContainer container) {
+        return track_cache.get(container);
+    }
+    
+    /**
+     * loads the artwork like {@link #get} but a load started by this call holds off uploading until {@code dwell}
+     * has passed. cancelling the returned future before then means a skipped track never costs an upload
+     */
+    public CompletableFuture<String> get(TrackContainer container, Duration dwell) {
+        return track_cache.get(container, (key, _) -> loadTrack(key, io, cpu, dwell));
+    }
+    
+    /**
+     * loads the artwork like {@link #get} but does the work on {@code executor}, cancelling the returned future
+     * before the artwork was read stops it from being processed and uploaded
+     */
+    public CompletableFuture<String> prefetch(TrackContainer container, Executor executor) {
+        return track_cache.get(container, (key, _) -> loadTrack(key, executor, executor, Duration.ZERO));
+    }
+    
+    public CompletableFuture<String> getIfPresent(TrackContainer container) {
+        return track_cache.getIfPresent(container);
+    }
+    
+    public boolean contains(TrackContainer container) {
+        var future = track_cache.getIfPresent(container);
+        if (future != null && future.isDone() && !future.isCompletedExceptionally())
+            return true;
+        return storedUrl(container.getTrackId()) != null;
+    }
+    
+    public String artworkUrl(String digest) {
+        var future = artwork_cache.getIfPresent(digest);
+        var url = (future == null) ? null : future.getNow(null);
+        return (url != null) ? url : stored.get(ARTWORK_PREFIX + digest);
+    }
+    
+    /**
+     * records artwork generated outside of this cache
+     */
+    public void put(TrackContainer container, String digest, String url) {
+        putDigest(container.getTrackId(), digest);
+        artwork_cache.put(digest, CompletableFuture.completedFuture(url));
+        track_cache.put(container, CompletableFuture.completedFuture(url));
+    }
+    
+    // the lanes aren't assigned yet when the cache is built, so they're only read once a load starts
+    private CompletableFuture<String> loadTrack(TrackContainer container, Executor executor) {
+        return loadTrack(container, io, cpu, Duration.ZERO);
+    }
+    
+    private CompletableFuture<String> loadTrack(TrackContainer container, Executor read_executor, Executor process_executor,
+                                                Duration dwell) {
+        var stored_url = storedUrl(container.getTrackId());
+        if (stored_url != null) {
+            var digest = stored.get(TRACK_PREFIX + TrackContainer.formatId(container.getTrackId()));
+            if (digest != null)
+                putDigest(container.getTrackId(), digest);
+            return CompletableFuture.completedFuture(stored_url);
+        }
+        
+        var start = System.nanoTime();
+        var result = new CompletableFuture<String>();
+        var admitted = dwell.isPositive()
+                ? CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(dwell.toMillis(), TimeUnit.MILLISECONDS, read_executor))
+                : CompletableFuture.<Void>completedFuture(null);
+        CompletableFuture.supplyAsync(() -> readArtwork(container), read_executor)
+                .thenCombine(loaded, (artwork, _) -> artwork)
+                .thenCompose((artwork) -> {
+                    if (artwork == null)
+                        return CompletableFuture.completedFuture(null);
+                    if (result.isDone()) {
+                        Metrics.get().increment(Metrics.Counter.CANCELLED_LOADS);
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    
+                    waitFor(artwork.digest(), result);
+                    return upload(container, artwork, result, admitted, process_executor);
+                })
+                .whenComplete((url, e) -> {
+                    Metrics.get().recordSince(Metrics.Stage.ARTWORK_LOAD, start);
+                    if (e != null)
+                        result.completeExceptionally(e);
+                    else
+                        result.complete(url);
+                });
+        return result;
+    }
+    
+    // every track with the same artwork shares one upload, it's only called off once none of their loads want it
+    private CompletableFuture<String> upload(TrackContainer container, RawArtwork artwork, CompletableFuture<String> result,
+                                             CompletableFuture<Void> admitted, Executor process_executor) {
+        var digest = artwork.digest();
+        // the processed image stays in the disk tier if the upload is called off
+        var shared = artwork_cache.get(digest, (_, _) -> {
+            var stored_url = stored.get(ARTWORK_PREFIX + digest);
+            if (stored_url != null)
+                return CompletableFuture.completedFuture(stored_url);
+            return CompletableFuture.supplyAsync(() -> process(artwork), process_executor)
+                    .thenCombine(admitted, (data, _) -> data)
+                    .thenCompose((data) -> {
+                        if (!waiters.containsKey(digest)) {
+                            Metrics.get().increment(Metrics.Counter.CANCELLED_LOADS);
+                            return CompletableFuture.<String>failedFuture(
+                                    new CancellationException("artwork " + digest + " is no longer wanted"));
+                        }
+                        return uploader.uploadAsync(data, artwork.name());
+                    });
+        });
+        return shared
+                .handle((url, e) -> {
+                    if (e == null) {
+                        // only tracks that are getting a url are recorded, failed and cancelled loads leave the
+                        // cache without an eviction that would remove it again
+                        if (!result.isDone())
+                            putDigest(container.getTrackId(), digest);
+                        return CompletableFuture.completedFuture(url);
+                    }
+                    var cause = (e instanceof CompletionException) ? e.getCause() : e;
+                    // the upload was called off just before this load started waiting on it
+                    if (cause instanceof CancellationException && !result.isDone()) {
+                        artwork_cache.asMap().remove(digest, shared);
+                        return upload(container, artwork, result, admitted, process_executor);
+                    }
+                    return CompletableFuture.<String>failedFuture(cause);
+                })
+                .thenCompose(Function.identity());
+    }
+    
+    private void waitFor(String digest, CompletableFuture<String> result) {
+        waiters.compute(digest, (_, loads) -> {
+            if (loads == null)
+                loads = new HashSet<>();
+            loads.add(result);
+            return loads;
+        });
+        result.whenComplete((_, _) -> waiters.computeIfPresent(digest, (_, loads) -> {
+            loads.remove(result);
+            return loads.isEmpty() ? null : loads;
+        }));
+    }
+    
+    // how many loads still want the upload of this digest, for tests to line up with
+    int waiting(String digest) {
+        var loads = waiters.get(digest);
+        return (loads == null) ? 0 : loads.size();
+    }
+    
+    private RawArtwork readArtwork(TrackContainer container) {
+        return player.artwork(container.getTrackId())
+                .map((data) -> new RawArtwork(digest(data), data, "track " + container))
+                .orElse(null);
+    }
+    
+    private byte[] process(RawArtwork artwork) {
+        log.info("album art {} not found in cache, generating", artwork.digest());
+        try {
+            return process(artwork.digest(), artwork.data(), artwork.name());
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    /**
+     * the optimised image for the raw artwork with this digest, from the disk tier if it was processed before
+     */
+    public byte[] process(String digest, byte[] data, String name) throws IOException {
+        var cached = processed_cache.get(digest);
+        if (cached.isPresent())
+            return cached.get();
+        var image = processor.optimiseImage(data, name, cpu);
+        processed_cache.put(digest, image);
+        return image;
+    }
+    
+    /**
+     * writes every track and artwork url, in memory or only in the store, to the store
+     *
+     * @return whether they're all on disk, false while still loading or if the store couldn't be written
+     */
+    public synchronized boolean save() {
+        // saving what's loaded so far would drop everything that isn't
+        if (!loaded.isDone()) {
+            log.info("not saving, cache is still loading");
+            return false;
+        }
+        // what's in memory goes on top of what was stored, anything evicted since is still in there
+        var entries = new HashMap<>(stored);
+        artwork_cache.synchronous()
+                .asMap()
+                .forEach((digest, url) -> entries.put(ARTWORK_PREFIX + digest, url));
+        track_cache.synchronous()
+                .asMap()
+                .forEach((container, url) -> {
+                    var id = TrackContainer.formatId(container.getTrackId());
+                    var digest = getDigest(container.getTrackId());
+                    if (digest != null && entries.containsKey(ARTWORK_PREFIX + digest)) {
+                        entries.put(TRACK_PREFIX + id, digest);
+                        entries.remove(id);
+                    } else if (!entries.containsKey(TRACK_PREFIX + id)) {
+                        entries.put(id, url);
+                    }
+                });
+        // kept even if the write fails, the store retries whatever it's missing on the next save
+        stored = Map.copyOf(entries);
+        return store.save(entries);
+    }
+    
+    /**
+     * loads the cache on {@code executor}
+     *
+     * @return a future completing once it's loaded
+     */
+    public CompletableFuture<Void> loadAsync(Path legacy_directory, Executor executor) {
+        executor.execute(() -> load(legacy_directory));
+        return loaded;
+    }
+    
+    public void load(Path legacy_directory) {
+        var start = System.nanoTime();
+        try {
+            loadEntries(legacy_directory);
+        } catch (RuntimeException e) {
+            log.error("failed to load cache: ", e);
+        } finally {
+            loaded.complete(null);
+        }
+        log.info("cache loaded in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    private void loadEntries(Path legacy_directory) {
+        processed_cache.load();
+        
+        var entries = store.load();
+        stored = entries;
+        
+        entries.forEach((key, value) -> {
+            if (key.startsWith(ARTWORK_PREFIX))
+                artwork_cache.put(key.substring(ARTWORK_PREFIX.length()), CompletableFuture.completedFuture(value));
+        });
+        entries.forEach((key, value) -> {
+            if (key.startsWith(ARTWORK_PREFIX))
+                return;
+            if (key.startsWith(TRACK_PREFIX)) {
+                var url = entries.get(ARTWORK_PREFIX + value);
+                if (url == null)
+                    return;
+                var id = TrackContainer.parseId(key.substring(TRACK_PREFIX.length()));
+                putDigest(id, value);
+                track_cache.put(new StoredTrack(id), CompletableFuture.completedFuture(url));
+            } else {
+                putLegacy(key, value);
+            }
+        });
+        
+        log.info("loaded {} tracks sharing {} artworks", track_cache.synchronous().estimatedSize(), artwork_cache.synchronous().estimatedSize());
+        
+        if (Files.isDirectory(legacy_directory)) {
+            ImageCacheDirectory.load(legacy_directory)
+                    .forEach(this::putLegacy);
+            loaded.complete(null);
+            // the legacy files are the only copy until the store has them
+            if (save())
+                ImageCacheDirectory.delete(legacy_directory);
+            else
+                log.warn("keeping legacy image cache '{}' until it's been saved to the store", legacy_directory);
+        }
+    }
+    
+    private void putLegacy(String id, String url) {
+        try {
+            track_cache.put(new StoredTrack(TrackContainer.parseId(id)), CompletableFuture.completedFuture(url));
+        } catch (NumberFormatException e) {
+            log.warn("ignoring image cache entry with invalid track id '{}'", id);
+        }
+    }
+    
+    // the url the store has for a track, by its artwork's digest or from before there were digests
+    private String storedUrl(long id) {
+        var stored = this.stored;
+        var key = TrackContainer.formatId(id);
+        var digest = stored.get(TRACK_PREFIX + key);
+        return (digest != null) ? stored.get(ARTWORK_PREFIX + digest) : stored.get(key);
+    }
+    
+    private String getDigest(long id) {
+        synchronized (track_digests) {
+            return track_digests.get(id);
+        }
+    }
+    
+    private void putDigest(long id, String digest) {
+        synchronized (track_digests) {
+            track_digests.put(id, digest);
+        }
+    }
+    
+    private void removeDigest(long id) {
+        synchronized (track_digests) {
+            track_digests.remove(id);
+        }
+    }
+    
+    static String digest(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    private record RawArtwork(String digest, byte[] data, String name) {}
+}
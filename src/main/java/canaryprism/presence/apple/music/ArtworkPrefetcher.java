@@ -0,0 +1,137 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * generates the artwork of the next few tracks in the current playlist before they start, so a new track can show
+ * its artwork on the first presence update instead of the fallback image
+ */
+public final class ArtworkPrefetcher implements AutoCloseable {
+    
+    private static final Logger log = LoggerFactory.getLogger(ArtworkPrefetcher.class);
+    
+    private final PlayerSource player;
+    private final ArtworkCache cache;
+    private final int look_ahead;
+    
+    // one low priority thread so prefetching never competes with the current track's artwork
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+            .name("artwork-prefetch")
+            .priority(Thread.MIN_PRIORITY)
+            .daemon()
+            .uncaughtExceptionHandler((_, e) -> log.error("exception while prefetching artwork: ", e))
+            .factory());
+    
+    // only touched on the prefetch thread
+    private List<Long> queue = List.of();
+    private final Map<Long, CompletableFuture<String>> in_flight = new HashMap<>();
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder cached = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    
+    public ArtworkPrefetcher(PlayerSource player, ArtworkCache cache, int look_ahead) {
+        this.player = player;
+        this.cache = cache;
+        this.look_ahead = look_ahead;
+    }
+    
+    /**
+     * called whenever a new track starts, counts whether its artwork was ready and looks ahead from it
+     */
+    public void trackStarted(long persistent_id, boolean ready) {
+        executor.execute(() -> {
+            var was_prefetched = in_flight.remove(persistent_id) != null;
+            if (ready && was_prefetched)
+                hits.increment();
+            else if (ready)
+                cached.increment();
+            else if (was_prefetched)
+                late.increment();
+            else
+                misses.increment();
+            
+            log.debug("prefetch hits: {}, late: {}, already cached: {}, misses: {}", hits.sum(), late.sum(), cached.sum(), misses.sum());
+            
+            refresh();
+        });
+    }
+    
+    private void refresh() {
+        List<Long> upcoming;
+        try {
+            upcoming = player.upcoming(look_ahead);
+        } catch (PlayerSourceException e) {
+            log.warn("failed to read upcoming tracks: ", e);
+            return;
+        }
+        if (upcoming.equals(queue))
+            return;
+        queue = upcoming;
+        
+        var iterator = in_flight.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (upcoming.contains(entry.getKey()))
+                continue;
+            if (entry.getValue().cancel(false)) {
+                cancelled.increment();
+                log.debug("cancelled prefetch of {}, no longer upcoming", TrackContainer.formatId(entry.getKey()));
+            }
+            iterator.remove();
+        }
+        
+        for (var id : upcoming) {
+            if (in_flight.containsKey(id))
+                continue;
+            var track = new StoredTrack(id);
+            if (cache.getIfPresent(track) != null)
+                continue;
+            
+            log.debug("prefetching artwork of {}", track);
+            prefetched.increment();
+            in_flight.put(id, cache.prefetch(track, executor));
+        }
+    }
+    
+    public long hits() {
+        return hits.sum();
+    }
+    
+    public long late() {
+        return late.sum();
+    }
+    
+    public long cached() {
+        return cached.sum();
+    }
+    
+    public long misses() {
+        return misses.sum();
+    }
+    
+    public long prefetched() {
+        return prefetched.sum();
+    }
+    
+    public long cancelled() {
+        return cancelled.sum();
+    }
+    
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,267 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+public final class ArtworkProcessor {
+    
+    private static final Logger log = LoggerFactory.getLogger(ArtworkProcessor.class);
+    
+    public static final int BLUR_RADIUS = 100;
+    
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+    
+    private final BlurEngine blur_engine;
+    private final OutputPolicy output;
+    private final MemoryBudget budget;
+    
+    public ArtworkProcessor(BlurEngine blur_engine) {
+        this(blur_engine, OutputPolicy.Preset.DEFAULT.policy(), new MemoryBudget(MemoryBudget.defaultBytes()));
+    }
+    
+    public ArtworkProcessor(BlurEngine blur_engine, OutputPolicy output, MemoryBudget budget) {
+        this.blur_engine = blur_engine;
+        this.output = output;
+        this.budget = budget;
+    }
+    
+    public byte[] optimiseImage(byte[] data) throws IOException {
+        return optimiseImage(data, "artwork");
+    }
+    
+    public byte[] optimiseImage(byte[] data, String name) throws IOException {
+        return optimiseImage(data, name, Runnable::run);
+    }
+    
+    /**
+     * @param executor the cpu lane the composite's bands are shared out on, the calling thread works on them too
+     */
+    public byte[] optimiseImage(byte[] data, String name, Executor executor) throws IOException {
+        var start = System.nanoTime();
+        
+        Plugins.scan();
+        
+        try (var input = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            var readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                throw new IOException("no image reader for " + name);
+            var reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                
+                var width = reader.getWidth(0);
+                var height = reader.getHeight(0);
+                var original_dimension = Math.max(width, height);
+                
+                // only decode every nth pixel of artwork much larger than the output, while leaving at
+                // least the maximum edge to scale down from smoothly
+                var subsampling = Math.max(1, original_dimension / output.maximumEdge());
+                var output_dimension = Math.min(original_dimension, output.maximumEdge());
+                
+                try (var _ = budget.reserve(estimate(width / subsampling, height / subsampling, output_dimension))) {
+                    var param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    var decode_start = System.nanoTime();
+                    var art = reader.read(0, param);
+                    Metrics.get().recordSince(Metrics.Stage.DECODE, decode_start);
+                    var result = optimise(art, original_dimension, name, start, executor);
+                    Metrics.get().recordSince(Metrics.Stage.OPTIMISE, start);
+                    return result;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for memory to process " + name);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    // decoded art, a scaled copy, the blur's two scratch rasters and result, the canvas, the rows the writer
+    // converts it through and the encoded output
+    static long estimate(int decoded_width, int decoded_height, int output_dimension) {
+        return (long) decoded_width * decoded_height * 4 + (long) output_dimension * output_dimension * 4 * 7;
+    }
+    
+    private byte[] optimise(BufferedImage art, int original_dimension, String name, long start, Executor executor) throws IOException {
+        if (Math.max(art.getWidth(), art.getHeight()) > output.maximumEdge()) {
+            var scale = (double) output.maximumEdge() / Math.max(art.getWidth(), art.getHeight());
+            art = scale(art, Math.max(1, (int) (art.getWidth() * scale)), Math.max(1, (int) (art.getHeight() * scale)));
+        }
+        
+        var max_dimension = Math.max(art.getWidth(), art.getHeight());
+        
+        // the blur radius is relative to the source artwork so scaled down output looks the same
+        var radius = Math.max(1, (int) Math.round((double) BLUR_RADIUS * max_dimension / original_dimension));
+        
+        // the blurred backdrop covers the whole square so the output never needs alpha
+        var pool = RasterPool.shared();
+        var pixels = pool.acquire(max_dimension * max_dimension);
+        try {
+            var raster = Raster.createPackedRaster(
+                    new DataBufferInt(pixels, max_dimension * max_dimension),
+                    max_dimension, max_dimension, max_dimension, RGB.getMasks(), null);
+            var image = new BufferedImage(RGB, raster, false, null);
+            
+            return compose(image, pixels, art, radius, original_dimension, name, start, executor);
+        } finally {
+            pool.release(pixels);
+        }
+    }
+    
+    private byte[] compose(BufferedImage image, int[] pixels, BufferedImage art, int radius, int original_dimension, String name, long start,
+            Executor executor) throws IOException {
+        var max_dimension = image.getWidth();
+        
+        var blur_start = System.nanoTime();
+        var blurred = blur_engine.blur(art, radius);
+        Metrics.get().recordSince(Metrics.Stage.BLUR, blur_start);
+        
+        var composite_start = System.nanoTime();
+        if (CompositeKernel.supports(art)) {
+            CompositeKernel.compose(pixels, max_dimension, blurred, art, executor);
+        } else {
+            // pooled pixels hold whatever was drawn last, and transparent art shows what's under it
+            Arrays.fill(pixels, 0, max_dimension * max_dimension, 0);
+            var g = image.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                
+                var blurred_min_dimension = Math.min(blurred.getWidth(), blurred.getHeight());
+                var scale = (double) max_dimension / blurred_min_dimension;
+                var scaled_width = (int) (blurred.getWidth() * scale);
+                var scaled_height = (int) (blurred.getHeight() * scale);
+                g.drawImage(
+                        blurred,
+                        (max_dimension - scaled_width) / 2,
+                        (max_dimension - scaled_height) / 2,
+                        scaled_width,
+                        scaled_height,
+                        null
+                );
+                
+                g.drawImage(art, (max_dimension - art.getWidth()) / 2, (max_dimension - art.getHeight()) / 2, null);
+            } finally {
+                g.dispose();
+            }
+        }
+        Metrics.get().recordSince(Metrics.Stage.COMPOSITE, composite_start);
+        
+        var composed = System.nanoTime();
+        
+        byte[] best = null;
+        OutputPolicy.Encoding best_encoding = null;
+        for (var encoding : output.encodings()) {
+            var encoded = encode(image, encoding);
+            if (encoded == null)
+                continue;
+            if (best == null || encoded.length < best.length) {
+                best = encoded;
+                best_encoding = encoding;
+            }
+            if (encoded.length <= output.byteBudget()) {
+                best = encoded;
+                best_encoding = encoding;
+                break;
+            }
+        }
+        if (best == null)
+            throw new IOException("no image writer for any of " + output.encodings());
+        
+        var end = System.nanoTime();
+        Metrics.get().record(Metrics.Stage.ENCODE, end - composed);
+        
+        if (best.length > output.byteBudget())
+            log.warn("{} is {} bytes as {}, over the budget of {} bytes", name, best.length, best_encoding, output.byteBudget());
+        
+        log.info("optimised {} from {}px to {}px {} in {} bytes, compose {} ms, encode {} ms",
+                name, original_dimension, max_dimension, best_encoding, best.length,
+                (composed - start) / 1_000_000, (end - composed) / 1_000_000);
+        
+        return best;
+    }
+    
+    public BufferedImage blur(BufferedImage image) {
+        return blur_engine.blur(image, BLUR_RADIUS);
+    }
+    
+    // halves at a time so bilinear filtering doesn't skip over source pixels
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        var type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        var current = image;
+        do {
+            var next_width = Math.max(width, current.getWidth() / 2);
+            var next_height = Math.max(height, current.getHeight() / 2);
+            var next = new BufferedImage(next_width, next_height, type);
+            var g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(current, 0, 0, next_width, next_height, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+        } while (current.getWidth() != width || current.getHeight() != height);
+        return current;
+    }
+    
+    // scanning the classpath for image plugins takes a while, so it's left until the first artwork is processed
+    // instead of holding up startup
+    private static final class Plugins {
+        
+        static {
+            ImageIO.scanForPlugins();
+        }
+        
+        static void scan() {}
+    }
+    
+    private static byte[] encode(BufferedImage image, OutputPolicy.Encoding encoding) throws IOException {
+        var writers = ImageIO.getImageWritersByFormatName(encoding.format().formatName());
+        if (!writers.hasNext()) {
+            log.debug("no image writer for {}, skipping", encoding.format());
+            return null;
+        }
+        var writer = writers.next();
+        try (var baos = new ByteArrayOutputStream(); var stream = new MemoryCacheImageOutputStream(baos)) {
+            var param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (encoding.format().compressionType() != null)
+                    param.setCompressionType(encoding.format().compressionType());
+                else if (param.getCompressionType() == null && param.getCompressionTypes() != null)
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                param.setCompressionQuality(encoding.quality());
+            }
+            
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+            stream.flush();
+            
+            return baos.toByteArray();
+        } catch (LinkageError e) {
+            // writers backed by a native library that doesn't load on this platform
+            log.warn("image writer for {} is unusable, skipping: ", encoding.format(), e);
+            return null;
+        } finally {
+            writer.dispose();
+        }
+    }
+}
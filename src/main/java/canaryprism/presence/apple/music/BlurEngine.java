@@ -0,0 +1,31 @@
+package canaryprism.presence.apple.music;
+
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+
+public sealed interface BlurEngine permits ConvolveBlurEngine, BoxBlurEngine, DownsampledBlurEngine {
+    
+    /**
+     * blurs the image with a gaussian of the given radius and crops {@code radius} pixels off every edge,
+     * leaving only the region where the kernel never sampled outside the image
+     */
+    BufferedImage blur(BufferedImage image, int radius);
+    
+    enum Mode {
+        CONVOLVE, BOX, DOWNSAMPLED;
+        
+        public static final Mode DEFAULT = BOX;
+        
+        public BlurEngine engine() {
+            return switch (this) {
+                case CONVOLVE -> new ConvolveBlurEngine();
+                case BOX -> new BoxBlurEngine(true);
+                case DOWNSAMPLED -> new DownsampledBlurEngine(4, new BoxBlurEngine(true));
+            };
+        }
+        
+        public static Mode parse(String name) {
+            return valueOf(name.strip().toUpperCase(Locale.ROOT));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package canaryprism.presence.apple.music;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * approximates the gaussian with three successive box blurs on a packed ARGB {@code int[]},
+ * which costs a constant handful of adds per pixel no matter how large the radius is
+ */
+public final class BoxBlurEngine implements BlurEngine {
+    
+    private static final int PASSES = 3;
+    
+    private final boolean parallel;
+    
+    public BoxBlurEngine(boolean parallel) {
+        this.parallel = parallel;
+    }
+    
+    @Override
+    public BufferedImage blur(BufferedImage image, int radius) {
+        var width = image.getWidth();
+        var height = image.getHeight();
+        
+        var pool = RasterPool.shared();
+        var first = pool.acquire(width * height);
+        var second = pool.acquire(width * height);
+        try {
+            var pixels = image.getRGB(0, 0, width, height, first, 0, width);
+            var buffer = second;
+            
+            // same sigma as ConvolveBlurEngine.makeKernels
+            var sizes = boxSizes(radius / 3f, PASSES);
+            
+            // each dimension is blurred as rows, the last pass of each writes transposed so the
+            // vertical passes also walk memory sequentially
+            for (int i = 0; i < PASSES; i++) {
+                boxPass(pixels, buffer, width, height, sizes[i] / 2, i == PASSES - 1);
+                var swap = pixels; pixels = buffer; buffer = swap;
+            }
+            for (int i = 0; i < PASSES; i++) {
+                boxPass(pixels, buffer, height, width, sizes[i] / 2, i == PASSES - 1);
+                var swap = pixels; pixels = buffer; buffer = swap;
+            }
+            
+            var cropped_width = width - radius * 2;
+            var cropped_height = height - radius * 2;
+            var result = new BufferedImage(cropped_width, cropped_height, BufferedImage.TYPE_INT_ARGB);
+            var data = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < cropped_height; y++)
+                System.arraycopy(pixels, (y + radius) * width + radius, data, y * cropped_width, cropped_width);
+            
+            return result;
+        } finally {
+            pool.release(first);
+            pool.release(second);
+        }
+    }
+    
+    static int[] boxSizes(float sigma, int passes) {
+        var ideal = Math.sqrt(12 * sigma * sigma / passes + 1);
+        var lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0)
+            lower--;
+        var upper = lower + 2;
+        
+        var lower_count = (int) Math.round(
+                (12 * sigma * sigma - passes * lower * lower - 4 * passes * lower - 3 * passes) / (-4.0 * lower - 4));
+        
+        var sizes = new int[passes];
+        for (int i = 0; i < passes; i++)
+            sizes[i] = (i < lower_count) ? lower : upper;
+        return sizes;
+    }
+    
+    private void boxPass(int[] source, int[] destination, int width, int height, int radius, boolean transpose) {
+        var rows = IntStream.range(0, height);
+        if (parallel)
+            rows = rows.parallel();
+        rows.forEach((y) -> boxRow(source, destination, width, height, y, radius, transpose));
+    }
+    
+    private static void boxRow(int[] source, int[] destination, int width, int height, int y, int radius, boolean transpose) {
+        var offset = y * width;
+        var last = width - 1;
+        var scale = 1f / (radius * 2 + 1);
+        
+        int a = 0, r = 0, g = 0, b = 0;
+        for (int k = -radius; k <= radius; k++) {
+            var pixel = source[offset + Math.clamp(k, 0, last)];
+            a += pixel >>> 24;
+            r += (pixel >> 16) & 0xff;
+            g += (pixel >> 8) & 0xff;
+            b += pixel & 0xff;
+        }
+        
+        for (int x = 0; x < width; x++) {
+            var value = ((int) (a * scale + 0.5f) << 24)
+                    | ((int) (r * scale + 0.5f) << 16)
+                    | ((int) (g * scale + 0.5f) << 8)
+                    | (int) (b * scale + 0.5f);
+            destination[transpose ? x * height + y : offset + x] = value;
+            
+            var incoming = source[offset + Math.min(x + radius + 1, last)];
+            var outgoing = source[offset + Math.max(x - radius, 0)];
+            a += (incoming >>> 24) - (outgoing >>> 24);
+            r += ((incoming >> 16) & 0xff) - ((outgoing >> 16) & 0xff);
+            g += ((incoming >> 8) & 0xff) - ((outgoing >> 8) & 0xff);
+            b += (incoming & 0xff) - (outgoing & 0xff);
+        }
+    }
+}
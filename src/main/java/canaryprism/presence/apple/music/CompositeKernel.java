@@ -0,0 +1,284 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * draws the blurred backdrop scaled to cover a square canvas and the artwork centred over it, straight on packed
+ * rgb pixels instead of through java2d
+ * <p>
+ * the backdrop is scaled bilinearly in two passes per output row, the two source rows are blended vertically into
+ * a scratch row and then sampled horizontally. rows are split into bands that the calling thread works through
+ * together with whichever of the executor's threads pick them up, and the passes use the vector api when
+ * {@code jdk.incubator.vector} is in the module graph, falling back to plain loops otherwise. only opaque artwork
+ * is handled here, anything with alpha is left to java2d
+ */
+public final class CompositeKernel {
+    
+    private static final Logger log = LoggerFactory.getLogger(CompositeKernel.class);
+    
+    // rows in a band, enough that splitting doesn't cost more than it saves
+    private static final int BAND_ROWS = 64;
+    
+    private static final Rows ROWS = rows();
+    
+    private CompositeKernel() {}
+    
+    /**
+     * the two passes of the bilinear scale, weights are in 256ths
+     */
+    interface Rows {
+        
+        /**
+         * blends row {@code a} of {@code source} into row {@code b} by {@code weight} into {@code destination}
+         */
+        void blendRows(int[] source, int a, int b, int weight, int width, int[] destination);
+        
+        /**
+         * samples {@code row} at {@code left} and {@code right} blended by {@code weights} for every output pixel
+         */
+        void sampleRow(int[] row, int[] left, int[] right, int[] weights, int[] destination, int offset, int width);
+    }
+    
+    private static Rows rows() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                var rows = VectorRows.create();
+                if (rows != null) {
+                    log.debug("compositing with the vector api");
+                    return rows;
+                }
+            } catch (LinkageError e) {
+                log.debug("vector api unavailable, compositing with scalar loops: ", e);
+            }
+        }
+        return new ScalarRows();
+    }
+    
+    public static boolean supports(BufferedImage art) {
+        return !art.getColorModel().hasAlpha();
+    }
+    
+    /**
+     * @param canvas {@code size * size} packed rgb pixels, every one of them is written
+     * @param executor where bands are handed out besides the calling thread, which never waits on a band that
+     *                 hasn't started so it's safe to pass the executor the caller itself runs on
+     */
+    public static void compose(int[] canvas, int size, BufferedImage backdrop, BufferedImage art, Executor executor) {
+        compose(canvas, size, backdrop, art, ROWS, executor);
+    }
+    
+    static void compose(int[] canvas, int size, BufferedImage backdrop, BufferedImage art, Rows rows, Executor executor) {
+        var pool = RasterPool.shared();
+        
+        var backdrop_width = backdrop.getWidth();
+        var backdrop_height = backdrop.getHeight();
+        var backdrop_pixels = pixels(backdrop, pool);
+        
+        // the same cover scale and rounding the java2d path used
+        var scale = (double) size / Math.min(backdrop_width, backdrop_height);
+        var scaled_width = (int) (backdrop_width * scale);
+        var scaled_height = (int) (backdrop_height * scale);
+        var x_offset = (size - scaled_width) / 2;
+        var y_offset = (size - scaled_height) / 2;
+        
+        var left = new int[size];
+        var right = new int[size];
+        var x_weights = new int[size];
+        for (int x = 0; x < size; x++)
+            sample(x - x_offset, backdrop_width, scaled_width, x, left, right, x_weights);
+        var top = new int[size];
+        var bottom = new int[size];
+        var y_weights = new int[size];
+        for (int y = 0; y < size; y++)
+            sample(y - y_offset, backdrop_height, scaled_height, y, top, bottom, y_weights);
+        
+        try {
+            var bands = Math.ceilDiv(size, BAND_ROWS);
+            var next = new AtomicInteger();
+            var finished = new CountDownLatch(bands);
+            var failure = new AtomicReference<Throwable>();
+            Runnable work = () -> {
+                for (int band; (band = next.getAndIncrement()) < bands; ) {
+                    var row = pool.acquire(backdrop_width);
+                    try {
+                        var end = Math.min(size, (band + 1) * BAND_ROWS);
+                        for (int y = band * BAND_ROWS; y < end; y++) {
+                            rows.blendRows(backdrop_pixels, top[y] * backdrop_width, bottom[y] * backdrop_width, y_weights[y],
+                                    backdrop_width, row);
+                            rows.sampleRow(row, left, right, x_weights, canvas, y * size, size);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        pool.release(row);
+                        finished.countDown();
+                    }
+                }
+            };
+            
+            // helpers that only get a thread once every band is taken find nothing left and return
+            var helpers = Math.min(bands, Runtime.getRuntime().availableProcessors()) - 1;
+            try {
+                for (int i = 0; i < helpers; i++)
+                    executor.execute(work);
+            } catch (RejectedExecutionException e) {
+                log.debug("executor is shutting down, compositing on the calling thread: ", e);
+            }
+            work.run();
+            awaitUninterruptibly(finished);
+            
+            if (failure.get() instanceof RuntimeException e)
+                throw e;
+            if (failure.get() instanceof Error e)
+                throw e;
+        } finally {
+            if (backdrop_pixels != data(backdrop))
+                pool.release(backdrop_pixels);
+        }
+        
+        overlay(canvas, size, art, pool);
+    }
+    
+    // bands still running on other threads read the pooled backdrop and write the canvas, neither can be handed back
+    // until they are done
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        var interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    // where output pixel i samples from, the centre of the pixel mapped back into the source and clamped at the edges
+    private static void sample(int position, int source_length, int scaled_length, int i, int[] low, int[] high, int[] weights) {
+        var source = (position + 0.5) * source_length / scaled_length - 0.5;
+        if (source <= 0) {
+            low[i] = 0;
+            high[i] = 0;
+            weights[i] = 0;
+        } else if (source >= source_length - 1) {
+            low[i] = source_length - 1;
+            high[i] = source_length - 1;
+            weights[i] = 0;
+        } else {
+            var floor = (int) source;
+            low[i] = floor;
+            high[i] = floor + 1;
+            weights[i] = (int) Math.round((source - floor) * 256);
+        }
+    }
+    
+    private static void overlay(int[] canvas, int size, BufferedImage art, RasterPool pool) {
+        var width = art.getWidth();
+        var height = art.getHeight();
+        var x_offset = (size - width) / 2;
+        var y_offset = (size - height) / 2;
+        
+        // the art is at most the size of the canvas, any odd pixel out is cut off like java2d would
+        var x_start = Math.max(0, -x_offset);
+        var y_start = Math.max(0, -y_offset);
+        var copy_width = Math.min(width - x_start, size - Math.max(0, x_offset));
+        var copy_height = Math.min(height - y_start, size - Math.max(0, y_offset));
+        
+        var pixels = pixels(art, pool);
+        try {
+            for (int y = 0; y < copy_height; y++)
+                System.arraycopy(pixels, (y + y_start) * width + x_start,
+                        canvas, (y + y_start + y_offset) * size + x_start + x_offset, copy_width);
+        } finally {
+            if (pixels != data(art))
+                pool.release(pixels);
+        }
+    }
+    
+    // the image's own array when it's already packed ints without padding, otherwise a pooled copy
+    private static int[] pixels(BufferedImage image, RasterPool pool) {
+        var data = data(image);
+        if (data != null)
+            return data;
+        
+        var width = image.getWidth();
+        var height = image.getHeight();
+        var pixels = pool.acquire(width * height);
+        try {
+            fill(image, pixels);
+        } catch (RuntimeException | Error e) {
+            pool.release(pixels);
+            throw e;
+        }
+        return pixels;
+    }
+    
+    private static void fill(BufferedImage image, int[] pixels) {
+        var width = image.getWidth();
+        var height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && image.getRaster().getDataBuffer() instanceof DataBufferByte buffer
+                && buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+                && image.getRaster().getSampleModelTranslateX() == 0 && image.getRaster().getSampleModelTranslateY() == 0
+                && buffer.getData().length == width * height * 3) {
+            // decoded jpegs, much quicker than going through getRGB
+            var bytes = buffer.getData();
+            for (int i = 0, j = 0; i < width * height; i++, j += 3)
+                pixels[i] = ((bytes[j + 2] & 0xff) << 16) | ((bytes[j + 1] & 0xff) << 8) | (bytes[j] & 0xff);
+        } else {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+    }
+    
+    private static int[] data(BufferedImage image) {
+        var type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+            return null;
+        var raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt buffer)
+                || buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || buffer.getData().length != image.getWidth() * image.getHeight())
+            return null;
+        return buffer.getData();
+    }
+    
+    static final class ScalarRows implements Rows {
+        
+        @Override
+        public void blendRows(int[] source, int a, int b, int weight, int width, int[] destination) {
+            if (weight == 0) {
+                System.arraycopy(source, a, destination, 0, width);
+                return;
+            }
+            for (int i = 0; i < width; i++)
+                destination[i] = blend(source[a + i], source[b + i], weight);
+        }
+        
+        @Override
+        public void sampleRow(int[] row, int[] left, int[] right, int[] weights, int[] destination, int offset, int width) {
+            for (int i = 0; i < width; i++)
+                destination[offset + i] = blend(row[left[i]], row[right[i]], weights[i]);
+        }
+        
+        // red and blue share one multiply, no channel can carry into the next
+        static int blend(int a, int b, int weight) {
+            var inverse = 256 - weight;
+            var red_blue = (((a & 0xff00ff) * inverse + (b & 0xff00ff) * weight + 0x800080) >>> 8) & 0xff00ff;
+            var green = (((a & 0xff00) * inverse + (b & 0xff00) * weight + 0x8000) >>> 8) & 0xff00;
+            return red_blue | green;
+        }
+    }
+}
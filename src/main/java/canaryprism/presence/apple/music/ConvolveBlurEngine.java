@@ -0,0 +1,49 @@
+package canaryprism.presence.apple.music;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+
+public final class ConvolveBlurEngine implements BlurEngine {
+    
+    @Override
+    public BufferedImage blur(BufferedImage image, int radius) {
+        var kernels = makeKernels(radius);
+        
+        var hop = new ConvolveOp(kernels.horizontal, ConvolveOp.EDGE_ZERO_FILL, null);
+        image = hop.filter(image, null);
+        
+        var vop = new ConvolveOp(kernels.vertical, ConvolveOp.EDGE_ZERO_FILL, null);
+        image = vop.filter(image, null);
+        
+        return image.getSubimage(radius, radius, image.getWidth() - radius * 2, image.getHeight() - radius * 2);
+    }
+    
+    record KernelTuple(Kernel horizontal, Kernel vertical) {}
+    
+    static KernelTuple makeKernels(float radius) {
+        int r = (int) Math.ceil(radius);
+        int rows = r * 2 + 1;
+        float[] matrix = new float[rows];
+        float sigma = radius / 3;
+        float sigma22 = 2 * sigma * sigma;
+        var sigmaPi2 = 2 * Math.PI * sigma;
+        float sqrtSigmaPi2 = (float) Math.sqrt(sigmaPi2);
+        float radius2 = radius * radius;
+        float total = 0;
+        int index = 0;
+        for (int row = -r; row <= r; row++) {
+            float distance = row * row;
+            if (distance > radius2)
+                matrix[index] = 0;
+            else
+                matrix[index] = (float) Math.exp(-(distance)/sigma22) / sqrtSigmaPi2;
+            total += matrix[index];
+            index++;
+        }
+        for (int i = 0; i < rows; i++)
+            matrix[i] /= total;
+        
+        return new KernelTuple(new Kernel(rows, 1, matrix), new Kernel(1, rows, matrix));
+    }
+}
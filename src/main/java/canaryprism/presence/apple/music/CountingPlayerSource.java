@@ -0,0 +1,86 @@
+package canaryprism.presence.apple.music;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counts and times the calls made through to another source, every call is at least one round trip to Music
+ */
+public final class CountingPlayerSource implements PlayerSource {
+    
+    private final PlayerSource source;
+    
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder artworks = new LongAdder();
+    private final LongAdder upcoming = new LongAdder();
+    private final LongAdder tracks = new LongAdder();
+    
+    public CountingPlayerSource(PlayerSource source) {
+        this.source = source;
+    }
+    
+    @Override
+    public PlayerSnapshot snapshot() {
+        snapshots.increment();
+        var start = System.nanoTime();
+        try {
+            return source.snapshot();
+        } finally {
+            Metrics.get().recordSince(Metrics.Stage.SNAPSHOT, start);
+        }
+    }
+    
+    @Override
+    public Optional<byte[]> artwork(long persistent_id) {
+        artworks.increment();
+        var start = System.nanoTime();
+        try {
+            return source.artwork(persistent_id);
+        } finally {
+            Metrics.get().recordSince(Metrics.Stage.ARTWORK_READ, start);
+        }
+    }
+    
+    @Override
+    public List<Long> upcoming(int count) {
+        upcoming.increment();
+        var start = System.nanoTime();
+        try {
+            return source.upcoming(count);
+        } finally {
+            Metrics.get().recordSince(Metrics.Stage.UPCOMING, start);
+        }
+    }
+    
+    @Override
+    public List<Long> tracks(String playlist) {
+        tracks.increment();
+        var start = System.nanoTime();
+        try {
+            return source.tracks(playlist);
+        } finally {
+            Metrics.get().recordSince(Metrics.Stage.TRACK_LIST, start);
+        }
+    }
+    
+    public long snapshots() {
+        return snapshots.sum();
+    }
+    
+    public long artworks() {
+        return artworks.sum();
+    }
+    
+    public long upcoming() {
+        return upcoming.sum();
+    }
+    
+    public long tracks() {
+        return tracks.sum();
+    }
+    
+    public long calls() {
+        return snapshots() + artworks() + upcoming() + tracks();
+    }
+}
@@ -0,0 +1,42 @@
+package canaryprism.presence.apple.music;
+
+import de.jcm.discordgamesdk.ActivityManager;
+import de.jcm.discordgamesdk.activity.Activity;
+import de.jcm.discordgamesdk.activity.ActivityType;
+
+/**
+ * sends presence straight to discord, the sdk isn't thread safe so this has to be called from the callback lane
+ */
+public final class DiscordPresenceSink implements PresenceSink {
+    
+    private final ActivityManager activity_manager;
+    
+    public DiscordPresenceSink(ActivityManager activity_manager) {
+        this.activity_manager = activity_manager;
+    }
+    
+    @Override
+    public void update(Presence presence) {
+        var activity = new Activity();
+        
+        activity.setType(ActivityType.LISTENING);
+        
+        var timestamps = activity.timestamps();
+        timestamps.setStart(presence.start());
+        timestamps.setEnd(presence.end());
+        
+        activity.setDetails(presence.details());
+        activity.setState(presence.state());
+        
+        var assets = activity.assets();
+        assets.setLargeImage(presence.largeImage());
+        assets.setLargeText(presence.largeText());
+        
+        activity_manager.updateActivity(activity);
+    }
+    
+    @Override
+    public void clear() {
+        activity_manager.clearActivity();
+    }
+}
@@ -0,0 +1,78 @@
+package canaryprism.presence.apple.music;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * blurs a {@code factor}-times smaller copy of the image and scales the result back up,
+ * a wide blur has no detail left that the lower resolution could lose
+ */
+public final class DownsampledBlurEngine implements BlurEngine {
+    
+    private final int factor;
+    private final BlurEngine engine;
+    
+    public DownsampledBlurEngine(int factor, BlurEngine engine) {
+        if (factor < 1)
+            throw new IllegalArgumentException("factor must be at least 1, got " + factor);
+        this.factor = factor;
+        this.engine = engine;
+    }
+    
+    @Override
+    public BufferedImage blur(BufferedImage image, int radius) {
+        var small_radius = radius / factor;
+        if (factor == 1 || small_radius < 1)
+            return engine.blur(image, radius);
+        
+        var blurred = engine.blur(downsample(image), small_radius);
+        
+        var result = new BufferedImage(image.getWidth() - radius * 2, image.getHeight() - radius * 2, BufferedImage.TYPE_INT_ARGB);
+        var g = result.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(blurred, 0, 0, result.getWidth(), result.getHeight(), null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+    
+    private BufferedImage downsample(BufferedImage image) {
+        var width = image.getWidth();
+        var height = image.getHeight();
+        var pool = RasterPool.shared();
+        var pixels = pool.acquire(width * height);
+        try {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+            
+            var small_width = Math.ceilDiv(width, factor);
+            var small_height = Math.ceilDiv(height, factor);
+            var small = new BufferedImage(small_width, small_height, BufferedImage.TYPE_INT_ARGB);
+            var data = ((DataBufferInt) small.getRaster().getDataBuffer()).getData();
+            
+            for (int sy = 0; sy < small_height; sy++) {
+                var y_end = Math.min((sy + 1) * factor, height);
+                for (int sx = 0; sx < small_width; sx++) {
+                    var x_end = Math.min((sx + 1) * factor, width);
+                    int a = 0, r = 0, g = 0, b = 0, count = 0;
+                    for (int y = sy * factor; y < y_end; y++) {
+                        for (int x = sx * factor; x < x_end; x++) {
+                            var pixel = pixels[y * width + x];
+                            a += pixel >>> 24;
+                            r += (pixel >> 16) & 0xff;
+                            g += (pixel >> 8) & 0xff;
+                            b += pixel & 0xff;
+                            count++;
+                        }
+                    }
+                    data[sy * small_width + sx] = ((a / count) << 24) | ((r / count) << 16) | ((g / count) << 8) | (b / count);
+                }
+            }
+            return small;
+        } finally {
+            pool.release(pixels);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the threads the presence runs on, split up so a stalled lane can't hold up the others
+ * <ul>
+ *     <li>callbacks: discord callbacks and every other call into the sdk, which isn't thread safe</li>
+ *     <li>polling: player polls, which block on apple events</li>
+ *     <li>cpu: image processing, one thread per core</li>
+ *     <li>io: artwork reads and http on virtual threads</li>
+ *     <li>persistence: cache saves</li>
+ * </ul>
+ */
+public final class ExecutionLanes implements AutoCloseable {
+    
+    private static final Logger log = LoggerFactory.getLogger(ExecutionLanes.class);
+    
+    private final ScheduledThreadPoolExecutor callbacks = scheduled("discord-callbacks");
+    private final ScheduledThreadPoolExecutor polling = scheduled("player-poll");
+    private final ScheduledThreadPoolExecutor persistence = scheduled("cache-persistence");
+    private final ThreadPoolExecutor cpu;
+    private final ExecutorService io = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+            .name("artwork-io-", 0)
+            .factory());
+    
+    private final AtomicInteger io_in_flight = new AtomicInteger();
+    private final Executor counted_io = (task) -> {
+        io_in_flight.incrementAndGet();
+        io.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                io_in_flight.decrementAndGet();
+            }
+        });
+    };
+    
+    public ExecutionLanes() {
+        var cores = Runtime.getRuntime().availableProcessors();
+        this.cpu = new ThreadPoolExecutor(cores, cores, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), Thread.ofPlatform()
+                .name("artwork-cpu-", 0)
+                .daemon()
+                .uncaughtExceptionHandler((_, e) -> log.error("exception in artwork-cpu: ", e))
+                .factory());
+        cpu.allowCoreThreadTimeOut(true);
+        
+        var metrics = Metrics.get();
+        metrics.registerGauge("callbacks lane queued", () -> ready(callbacks));
+        metrics.registerGauge("polling lane queued", () -> ready(polling));
+        metrics.registerGauge("persistence lane queued", () -> ready(persistence));
+        metrics.registerGauge("cpu lane queued", () -> cpu.getQueue().size());
+        metrics.registerGauge("io lane in flight", io_in_flight::get);
+    }
+    
+    public ScheduledExecutorService callbacks() {
+        return callbacks;
+    }
+    
+    public ScheduledExecutorService polling() {
+        return polling;
+    }
+    
+    public ScheduledExecutorService persistence() {
+        return persistence;
+    }
+    
+    public Executor cpu() {
+        return cpu;
+    }
+    
+    public Executor io() {
+        return counted_io;
+    }
+    
+    @Override
+    public void close() {
+        callbacks.shutdown();
+        polling.shutdown();
+        persistence.shutdown();
+        cpu.shutdown();
+        io.shutdown();
+    }
+    
+    // tasks that are due but still waiting for the lane's thread, periodic tasks sit in the queue between runs
+    private static long ready(ScheduledThreadPoolExecutor executor) {
+        return executor.getQueue()
+                .stream()
+                .filter((task) -> ((Delayed) task).getDelay(TimeUnit.NANOSECONDS) <= 0)
+                .count();
+    }
+    
+    private static ScheduledThreadPoolExecutor scheduled(String name) {
+        var executor = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+                .name(name)
+                .uncaughtExceptionHandler((_, e) -> log.error("exception in {}: ", name, e))
+                .factory());
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -0,0 +1,261 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * uploads to whichever of several hosts answers first
+ * <p>
+ * the fastest healthy host gets the upload. if it hasn't answered by its 90th percentile latency the upload is
+ * hedged to the next host, and if it fails the next one is tried straight away. the first url wins and the other
+ * uploads are cancelled. a host failing {@value #BREAKER_FAILURES} times in a row is left out for a while, doubling
+ * every time it fails again after coming back. only failures of the host count, not it rejecting an image
+ */
+public final class HedgedImageHost implements ImageHost {
+    
+    private static final Logger log = LoggerFactory.getLogger(HedgedImageHost.class);
+    
+    private static final int BREAKER_FAILURES = 3;
+    private static final Duration BREAKER_OPEN = Duration.ofSeconds(30);
+    private static final Duration BREAKER_MAXIMUM_OPEN = Duration.ofMinutes(10);
+    
+    // until a host has this many samples its hedge delay is the default
+    private static final int MINIMUM_SAMPLES = 5;
+    private static final Duration DEFAULT_HEDGE_DELAY = Duration.ofSeconds(3);
+    private static final Duration MINIMUM_HEDGE_DELAY = Duration.ofMillis(250);
+    
+    private final List<Backend> backends;
+    
+    public HedgedImageHost(List<ImageHost> hosts) {
+        if (hosts.isEmpty())
+            throw new IllegalArgumentException("no image hosts given");
+        this.backends = hosts.stream().map(Backend::new).toList();
+        
+        var metrics = Metrics.get();
+        for (var backend : backends) {
+            var name = backend.host.name();
+            metrics.registerGauge(name + " uploads", backend.successes::sum);
+            metrics.registerGauge(name + " failures", backend.failures::sum);
+            metrics.registerGauge(name + " hedged to", backend.hedges::sum);
+            metrics.registerGauge(name + " p90 ms", () -> TimeUnit.NANOSECONDS.toMillis(backend.latency.percentile(0.9)));
+            metrics.registerGauge(name + " breaker open", () -> backend.open(System.nanoTime()) ? 1 : 0);
+        }
+    }
+    
+    @Override
+    public String name() {
+        return backends.stream()
+                .map((backend) -> backend.host.name())
+                .collect(Collectors.joining(", ", "hedged(", ")"));
+    }
+    
+    @Override
+    public CompletableFuture<String> uploadAsync(byte[] data, String name) {
+        return new Upload(data, name, order()).start();
+    }
+    
+    // healthy hosts fastest first, then the ones with an open breaker in case every host is down
+    private List<Backend> order() {
+        var now = System.nanoTime();
+        var healthy = new ArrayList<Backend>();
+        var broken = new ArrayList<Backend>();
+        for (var backend : backends)
+            (backend.open(now) ? broken : healthy).add(backend);
+        healthy.sort(Comparator.comparingDouble(Backend::expectedMillis));
+        broken.sort(Comparator.comparingLong(Backend::openUntil));
+        healthy.addAll(broken);
+        return healthy;
+    }
+    
+    /**
+     * one upload across the hosts, all state is guarded by itself
+     */
+    private final class Upload {
+        
+        private final byte[] data;
+        private final String name;
+        private final List<Backend> order;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final List<CompletableFuture<String>> attempts = new ArrayList<>();
+        
+        private int next;
+        private int running;
+        private Throwable failure;
+        
+        Upload(byte[] data, String name, List<Backend> order) {
+            this.data = data;
+            this.name = name;
+            this.order = order;
+        }
+        
+        CompletableFuture<String> start() {
+            result.whenComplete((_, _) -> {
+                synchronized (this) {
+                    for (var attempt : attempts)
+                        attempt.cancel(true);
+                }
+            });
+            synchronized (this) {
+                launch(false);
+            }
+            return result;
+        }
+        
+        // called holding the lock
+        private void launch(boolean hedge) {
+            if (result.isDone() || next >= order.size())
+                return;
+            var backend = order.get(next++);
+            if (hedge) {
+                backend.hedges.increment();
+                log.info("{} is slow uploading {}, hedging to {}", order.get(next - 2).host.name(), name, backend.host.name());
+            }
+            running++;
+            
+            var start = System.nanoTime();
+            var attempt = backend.host.uploadAsync(data, name);
+            attempts.add(attempt);
+            attempt.whenComplete((url, e) -> finished(backend, start, url, e));
+            
+            if (next < order.size()) {
+                var delay = backend.hedgeDelay();
+                CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+                    synchronized (this) {
+                        if (!attempt.isDone())
+                            launch(true);
+                    }
+                });
+            }
+        }
+        
+        private void finished(Backend backend, long start, String url, Throwable e) {
+            var elapsed = System.nanoTime() - start;
+            if (e instanceof CancellationException || (e != null && e.getCause() instanceof CancellationException)) {
+                // lost to another host, it took at least this long
+                backend.slowerThan(elapsed);
+                return;
+            }
+            if (e == null && url != null) {
+                backend.succeeded(elapsed);
+                result.complete(url);
+                return;
+            }
+            
+            var cause = (e instanceof CompletionException) ? e.getCause() : e;
+            // a host that answered with a rejection is up, only failing to answer at all, 429 and 5xx count
+            // towards its breaker, and those are what the uploader gives up with an IOException on
+            if (cause instanceof IOException)
+                backend.failed(System.nanoTime());
+            else if (cause == null)
+                backend.rejected();
+            synchronized (this) {
+                running--;
+                if (failure == null || cause != null)
+                    failure = cause;
+                if (next < order.size()) {
+                    log.warn("upload of {} to {} failed, trying {}", name, backend.host.name(), order.get(next).host.name());
+                    launch(false);
+                } else if (running == 0) {
+                    // null only when every host rejected the image
+                    if (failure != null)
+                        result.completeExceptionally(new IOException("upload of " + name + " failed on every image host", failure));
+                    else
+                        result.complete(null);
+                }
+            }
+        }
+    }
+    
+    /**
+     * what's known about one host, latency only counts uploads that finished
+     */
+    private static final class Backend {
+        
+        private final ImageHost host;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+        
+        // guarded by this
+        private double average_millis;
+        private int consecutive_failures;
+        private long open_until;
+        private Duration open_for = BREAKER_OPEN;
+        
+        Backend(ImageHost host) {
+            this.host = host;
+        }
+        
+        Duration hedgeDelay() {
+            if (latency.count() < MINIMUM_SAMPLES)
+                return DEFAULT_HEDGE_DELAY;
+            var p90 = Duration.ofNanos(latency.percentile(0.9));
+            return (p90.compareTo(MINIMUM_HEDGE_DELAY) < 0) ? MINIMUM_HEDGE_DELAY : p90;
+        }
+        
+        synchronized double expectedMillis() {
+            return average_millis;
+        }
+        
+        synchronized long openUntil() {
+            return open_until;
+        }
+        
+        // a breaker that has been open long enough lets the next upload through to see if the host is back
+        synchronized boolean open(long now) {
+            return consecutive_failures >= BREAKER_FAILURES && now - open_until < 0;
+        }
+        
+        synchronized void succeeded(long nanos) {
+            latency.record(nanos);
+            successes.increment();
+            average(nanos);
+            consecutive_failures = 0;
+            open_for = BREAKER_OPEN;
+        }
+        
+        synchronized void slowerThan(long nanos) {
+            if (nanos / 1e6 > average_millis)
+                average(nanos);
+        }
+        
+        synchronized void rejected() {
+            failures.increment();
+            consecutive_failures = 0;
+        }
+        
+        synchronized void failed(long now) {
+            failures.increment();
+            consecutive_failures++;
+            if (consecutive_failures >= BREAKER_FAILURES) {
+                if (now - open_until >= 0 && consecutive_failures > BREAKER_FAILURES)
+                    open_for = min(open_for.multipliedBy(2), BREAKER_MAXIMUM_OPEN);
+                open_until = now + open_for.toNanos();
+                log.warn("{} failed {} times in a row, leaving it out for {}", host.name(), consecutive_failures, open_for);
+            }
+        }
+        
+        // moving average, a host that gets slow stops being first within a few uploads
+        private void average(long nanos) {
+            var millis = nanos / 1e6;
+            average_millis = (average_millis == 0) ? millis : average_millis * 0.7 + millis * 0.3;
+        }
+        
+        private static Duration min(Duration a, Duration b) {
+            return (a.compareTo(b) <= 0) ? a : b;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * reads the one-file-per-track image cache used before {@link ImageCacheStore}, only kept around to migrate it
+ */
+public final class ImageCacheDirectory {
+    
+    private static final Logger log = LoggerFactory.getLogger(ImageCacheDirectory.class);
+    
+    private ImageCacheDirectory() {}
+    
+    public static Map<String, String> load(Path directory) {
+        log.info("loading legacy image cache from '{}'", directory);
+        var entries = new HashMap<String, String>();
+        try (var files = Files.list(directory)) {
+            files.filter(Files::isRegularFile)
+                    .forEach((path) -> {
+                        try {
+                            entries.put(path.getFileName().toString(), Files.readString(path));
+                        } catch (IOException e) {
+                            log.error("failed to load image cache from disk: ", e);
+                        }
+                    });
+        } catch (IOException e) {
+            log.error("failed to access image cache path '{}': ", directory, e);
+        }
+        return entries;
+    }
+    
+    public static void delete(Path directory) {
+        log.info("deleting legacy image cache '{}'", directory);
+        try (var files = Files.list(directory)) {
+            for (var path : files.filter(Files::isRegularFile).toList())
+                Files.delete(path);
+            Files.delete(directory);
+        } catch (IOException e) {
+            log.error("failed to delete legacy image cache '{}': ", directory, e);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * append-only log of image cache entries in a single file
+ * <p>
+ * every save appends only the entries that were added, changed or removed since the last one, as
+ * {@code [length][crc32c][payload]} records followed by a single fsync. a torn record at the tail
+ * from a crash fails its checksum and is cut off on the next load, everything before it survives.
+ * once dead records outnumber live ones the log is rewritten into a temporary file and atomically
+ * moved over the old one
+ */
+public final class ImageCacheStore {
+    
+    private static final Logger log = LoggerFactory.getLogger(ImageCacheStore.class);
+    
+    private static final int MAGIC = 0x414d5043; // AMPC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    
+    private static final int MINIMUM_COMPACTION_RECORDS = 256;
+    
+    private final Path path;
+    private final Appender appender;
+    
+    private FileChannel lock_channel;
+    
+    // set when the file couldn't be read and is still in place, saving would overwrite it
+    private boolean unrecognised;
+    
+    // what replaying the log on disk currently yields
+    private final Map<String, String> persisted = new HashMap<>();
+    private long records;
+    
+    public ImageCacheStore(Path path) {
+        this(path, ImageCacheStore::writeFully);
+    }
+    
+    ImageCacheStore(Path path, Appender appender) {
+        this.path = path;
+        this.appender = appender;
+    }
+    
+    /**
+     * writes an append to the end of the file, only replaced by tests to fail partway through one
+     */
+    interface Appender {
+        void append(FileChannel channel, ByteBuffer buffer) throws IOException;
+    }
+    
+    /**
+     * stops any other process from using the store for as long as this one runs, appends from two processes would
+     * each remove what the other added
+     */
+    public synchronized void lock() throws IOException {
+        if (lock_channel != null)
+            return;
+        var channel = FileChannel.open(path.resolveSibling(path.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.tryLock() == null) {
+            channel.close();
+            throw new IllegalStateException("image cache '" + path + "' is in use by another instance");
+        }
+        lock_channel = channel;
+    }
+    
+    public synchronized Map<String, String> load() {
+        log.info("loading image cache from '{}'", path);
+        persisted.clear();
+        records = 0;
+        unrecognised = false;
+        
+        if (Files.notExists(path))
+            return Map.of();
+        
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        } catch (IOException e) {
+            log.error("failed to read image cache '{}', not saving to it: ", path, e);
+            unrecognised = true;
+            return Map.of();
+        }
+        
+        var buffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            // a newer version or a torn header, either way the urls in it shouldn't be thrown away
+            var corrupt = path.resolveSibling(path.getFileName() + ".corrupt");
+            try {
+                Files.move(path, corrupt, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                log.error("image cache '{}' has an unrecognised header and could not be moved aside, not saving to it: ", path, e);
+                unrecognised = true;
+                return Map.of();
+            }
+            log.warn("image cache '{}' has an unrecognised header, moved it to '{}' and starting over", path, corrupt);
+            compact();
+            return Map.of();
+        }
+        
+        var crc = new CRC32C();
+        var valid_end = buffer.position();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            var length = buffer.getInt();
+            var checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining())
+                break;
+            
+            crc.reset();
+            crc.update(data, buffer.position(), length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            
+            try {
+                apply(new DataInputStream(new ByteArrayInputStream(data, buffer.position(), length)));
+            } catch (IOException e) {
+                break;
+            }
+            
+            buffer.position(buffer.position() + length);
+            valid_end = buffer.position();
+            records++;
+        }
+        
+        if (valid_end < data.length) {
+            log.warn("discarding {} bytes of incomplete records at the end of image cache '{}'", data.length - valid_end, path);
+            truncate(valid_end);
+        }
+        
+        log.info("loaded {} image cache entries from {} records", persisted.size(), records);
+        
+        if (shouldCompact())
+            compact();
+        
+        return Map.copyOf(persisted);
+    }
+    
+    /**
+     * brings the file in line with {@code entries}
+     *
+     * @return whether {@code entries} is now what loading the file yields, false if it couldn't be written
+     */
+    public synchronized boolean save(Map<String, String> entries) {
+        if (unrecognised) {
+            log.warn("not saving image cache '{}', it holds data that couldn't be read", path);
+            return false;
+        }
+        
+        var baos = new ByteArrayOutputStream();
+        var appended = 0;
+        try (var out = new DataOutputStream(baos)) {
+            for (var entry : entries.entrySet()) {
+                if (entry.getValue().equals(persisted.get(entry.getKey())))
+                    continue;
+                writeRecord(out, PUT, entry.getKey(), entry.getValue());
+                appended++;
+            }
+            for (var id : persisted.keySet()) {
+                if (entries.containsKey(id))
+                    continue;
+                writeRecord(out, REMOVE, id, null);
+                appended++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        if (appended == 0) {
+            log.debug("image cache unchanged, nothing to save");
+            return true;
+        }
+        
+        if (Files.notExists(path) || records == 0 && persisted.isEmpty()) {
+            persisted.putAll(entries);
+            records = 0;
+            return compact();
+        }
+        
+        var size = -1L;
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            size = channel.size();
+            appender.append(channel, ByteBuffer.wrap(baos.toByteArray()));
+            channel.force(false);
+        } catch (IOException e) {
+            log.error("failed to append to image cache '{}': ", path, e);
+            // loading stops at a torn record, so whatever a later save appends after it would never be read back
+            if (size >= 0 && !truncate(size))
+                compact();
+            return false;
+        }
+        
+        persisted.keySet().retainAll(entries.keySet());
+        persisted.putAll(entries);
+        records += appended;
+        
+        log.info("appended {} records to image cache '{}'", appended, path);
+        
+        // the records are already on disk, a failed compaction only leaves them uncompacted
+        if (shouldCompact())
+            compact();
+        return true;
+    }
+    
+    private boolean shouldCompact() {
+        return records > MINIMUM_COMPACTION_RECORDS && records > persisted.size() * 2L;
+    }
+    
+    private boolean compact() {
+        var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            var baos = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(baos)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (var entry : persisted.entrySet())
+                    writeRecord(out, PUT, entry.getKey(), entry.getValue());
+            }
+            
+            try (var channel = FileChannel.open(temporary,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, ByteBuffer.wrap(baos.toByteArray()));
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            log.info("compacted image cache '{}' from {} to {} records", path, records, persisted.size());
+            records = persisted.size();
+            return true;
+        } catch (IOException e) {
+            log.error("failed to compact image cache '{}': ", path, e);
+            return false;
+        }
+    }
+    
+    private boolean truncate(long size) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            channel.force(true);
+            return true;
+        } catch (IOException e) {
+            log.error("failed to truncate image cache '{}': ", path, e);
+            return false;
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+    
+    private void apply(DataInputStream in) throws IOException {
+        var type = in.readByte();
+        var id = in.readUTF();
+        switch (type) {
+            case PUT -> persisted.put(id, in.readUTF());
+            case REMOVE -> persisted.remove(id);
+            default -> throw new EOFException("unknown record type " + type);
+        }
+    }
+    
+    private static void writeRecord(DataOutputStream out, byte type, String id, String url) throws IOException {
+        var payload_bytes = new ByteArrayOutputStream();
+        try (var payload = new DataOutputStream(payload_bytes)) {
+            payload.writeByte(type);
+            payload.writeUTF(id);
+            if (type == PUT)
+                payload.writeUTF(url);
+        }
+        var data = payload_bytes.toByteArray();
+        
+        var crc = new CRC32C();
+        crc.update(data);
+        
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+    }
+}
@@ -0,0 +1,36 @@
+package canaryprism.presence.apple.music;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * somewhere optimised artwork is uploaded to for discord to show
+ */
+public interface ImageHost {
+    
+    /**
+     * what the host is called in logs and metrics
+     */
+    String name();
+    
+    /**
+     * completes with the url of the uploaded image, or null if the host rejected it. cancelling the returned future
+     * abandons the upload
+     */
+    CompletableFuture<String> uploadAsync(byte[] data, String name);
+    
+    default String upload(byte[] data, String name) throws IOException, InterruptedException {
+        var future = uploadAsync(data, name);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw new IOException("failed to upload image for " + name, e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+}
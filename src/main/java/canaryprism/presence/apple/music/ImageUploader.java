@@ -0,0 +1,203 @@
+package canaryprism.presence.apple.music;
+
+import com.github.mizosoft.methanol.MediaType;
+import com.github.mizosoft.methanol.MultipartBodyPublisher;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * uploads images to freeimage.host, or any other host with the same chevereto api at {@code endpoint}
+ * <p>
+ * the image goes up as a binary file part straight from the caller's array, so nothing is base64 encoded or
+ * copied on the way. failed connections, timeouts, 429 and 5xx responses are retried with jittered
+ * exponential backoff
+ */
+public final class ImageUploader implements ImageHost {
+    
+    private static final Logger log = LoggerFactory.getLogger(ImageUploader.class);
+    
+    public static final URI ENDPOINT = URI.create("https://freeimage.host/api/1/upload");
+    
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration BACKOFF = Duration.ofSeconds(1);
+    private static final int ATTEMPTS = 4;
+    
+    private final HttpClient client;
+    private final URI endpoint;
+    private final URI upload_uri;
+    private final Duration backoff;
+    
+    public ImageUploader(HttpClient client, String api_key) {
+        this(client, ENDPOINT, api_key);
+    }
+    
+    public ImageUploader(HttpClient client, URI endpoint, String api_key) {
+        this(client, endpoint, api_key, BACKOFF);
+    }
+    
+    /**
+     * @param backoff the delay before the first retry, doubling with every one after it
+     */
+    ImageUploader(HttpClient client, URI endpoint, String api_key, Duration backoff) {
+        this.client = client;
+        this.endpoint = endpoint;
+        this.upload_uri = withKey(endpoint, api_key);
+        this.backoff = backoff;
+    }
+    
+    // endpoints may come with a query of their own, the key goes after it
+    private static URI withKey(URI endpoint, String api_key) {
+        var base = endpoint.toString();
+        var fragment = base.indexOf('#');
+        if (fragment >= 0)
+            base = base.substring(0, fragment);
+        var separator = (endpoint.getRawQuery() == null) ? "?" : "&";
+        return URI.create(base + separator + "key=" + URLEncoder.encode(api_key, StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * a client suited to uploading, share one so connections are reused between uploads
+     */
+    public static HttpClient newClient(Executor executor) {
+        return HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+    
+    @Override
+    public String name() {
+        return endpoint.getHost();
+    }
+    
+    @Override
+    public CompletableFuture<String> uploadAsync(byte[] data, String name) {
+        log.info("uploading image for {} to {}", name, name());
+        var metrics = Metrics.get();
+        var start = System.nanoTime();
+        var result = new CompletableFuture<String>();
+        // the request in flight, so cancelling the result can abort it
+        var in_flight = new AtomicReference<CompletableFuture<?>>();
+        result.whenComplete((_, _) -> {
+            if (result.isCancelled()) {
+                var request = in_flight.get();
+                if (request != null)
+                    request.cancel(true);
+            }
+        });
+        attempt(data, name, 1, result, in_flight)
+                .whenComplete((url, e) -> {
+                    if (result.isCancelled())
+                        return;
+                    metrics.recordSince(Metrics.Stage.UPLOAD, start);
+                    if (e != null || url == null) {
+                        metrics.increment(Metrics.Counter.UPLOAD_FAILURES);
+                    } else {
+                        metrics.increment(Metrics.Counter.UPLOADS);
+                        metrics.add(Metrics.Counter.UPLOAD_BYTES, data.length);
+                    }
+                    if (e != null)
+                        result.completeExceptionally((e instanceof CompletionException) ? e.getCause() : e);
+                    else
+                        result.complete(url);
+                });
+        return result;
+    }
+    
+    private CompletableFuture<String> attempt(byte[] data, String name, int attempt, CompletableFuture<String> result,
+                                              AtomicReference<CompletableFuture<?>> in_flight) {
+        if (result.isDone())
+            return CompletableFuture.failedFuture(new CancellationException("upload for " + name + " was cancelled"));
+        var request = client.sendAsync(request(data), HttpResponse.BodyHandlers.ofString());
+        in_flight.set(request);
+        if (result.isCancelled())
+            request.cancel(true);
+        return request
+                .handle((response, e) -> {
+                    var cause = (e instanceof CompletionException) ? e.getCause() : e;
+                    if (cause == null && !retryable(response.statusCode()))
+                        return CompletableFuture.completedFuture(parse(response, name));
+                    if (cause != null && !(cause instanceof IOException))
+                        return CompletableFuture.<String>failedFuture(cause);
+                    
+                    var failure = (cause != null) ? cause.toString() : "status " + response.statusCode();
+                    if (attempt >= ATTEMPTS)
+                        return CompletableFuture.<String>failedFuture((cause != null) ? cause
+                                : new IOException("upload for " + name + " failed with " + failure));
+                    
+                    Metrics.get().increment(Metrics.Counter.UPLOAD_RETRIES);
+                    var delay = backoff(attempt);
+                    log.warn("upload attempt {} for {} failed with {}, retrying in {} ms", attempt, name, failure, delay);
+                    return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                            .thenCompose((_) -> attempt(data, name, attempt + 1, result, in_flight));
+                })
+                .thenCompose(Function.identity());
+    }
+    
+    private HttpRequest request(byte[] data) {
+        var format = format(data);
+        var form = MultipartBodyPublisher.newBuilder()
+                .formPart("source", "artwork." + format.extension(), HttpRequest.BodyPublishers.ofByteArray(data),
+                        MediaType.of("image", format.formatName()))
+                .build();
+        
+        return HttpRequest.newBuilder(upload_uri)
+                .header("Content-Type", form.mediaType().toString())
+                .timeout(REQUEST_TIMEOUT)
+                .POST(form)
+                .build();
+    }
+    
+    private static String parse(HttpResponse<String> http_response, String name) {
+        try {
+            var response = new JSONObject(http_response.body());
+            try {
+                return response.getJSONObject("image").getString("url");
+            } catch (JSONException e) {
+                log.error("failed to get image url from response:\n{}", response.toString(2), e);
+                return null;
+            }
+        } catch (JSONException e) {
+            log.error("upload for {} failed with status {}:\n{}", name, http_response.statusCode(), http_response.body(), e);
+            return null;
+        }
+    }
+    
+    private static boolean retryable(int status) {
+        return status == 429 || status >= 500;
+    }
+    
+    private long backoff(int attempt) {
+        var base = backoff.toMillis() << (attempt - 1);
+        return base + ThreadLocalRandom.current().nextLong(base);
+    }
+    
+    private static OutputPolicy.Format format(byte[] data) {
+        if (data.length > 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8)
+            return OutputPolicy.Format.JPEG;
+        if (data.length > 12 && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P')
+            return OutputPolicy.Format.WEBP;
+        return OutputPolicy.Format.PNG;
+    }
+}
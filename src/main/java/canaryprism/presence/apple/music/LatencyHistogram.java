@@ -0,0 +1,79 @@
+package canaryprism.presence.apple.music;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * log linear histogram of durations in nanoseconds, recording is a few shifts and atomic adds and never allocates
+ * <p>
+ * every power of two is split into {@code SUB_BUCKETS} equal buckets, so percentiles are within an eighth of the
+ * recorded value
+ */
+public final class LatencyHistogram {
+    
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    public void record(long nanos) {
+        var value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+    
+    public long count() {
+        return count.sum();
+    }
+    
+    public long max() {
+        return max.get();
+    }
+    
+    public double mean() {
+        var count = count();
+        return (count == 0) ? 0 : (double) sum.sum() / count;
+    }
+    
+    /**
+     * the upper bound of the bucket holding the given quantile, or 0 if nothing was recorded
+     */
+    public long percentile(double quantile) {
+        var total = 0L;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        
+        var rank = Math.max(1, (long) Math.ceil(quantile * total));
+        var seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max());
+        }
+        return max();
+    }
+    
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        var shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        var shift = index / SUB_BUCKETS - 1;
+        var lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,209 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * fills the image cache for a whole playlist or library ahead of time
+ * <p>
+ * artwork is read from Music one track at a time on the calling thread, processed on a fork join pool sized to the
+ * cores and uploaded from virtual threads, at most {@code upload_concurrency} at once and no faster than the rate
+ * limit allows. tracks that are already cached or whose artwork another track already uploaded are skipped, and the
+ * cache is saved as it goes so an interrupted run picks up where it left off
+ * <p>
+ * interrupting the calling thread stops reading new tracks, but the uploads already in flight are still waited for
+ * and saved before {@link #run} throws {@link InterruptedException}
+ */
+public final class LibraryWarmer {
+    
+    private static final Logger log = LoggerFactory.getLogger(LibraryWarmer.class);
+    
+    private static final int SAVE_EVERY = 25;
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(5);
+    
+    private final PlayerSource player;
+    private final ArtworkCache cache;
+    private final ImageHost uploader;
+    private final Semaphore upload_permits;
+    private final TokenBucket upload_rate;
+    private final PrintStream out;
+    
+    // bounds how much raw and processed artwork is held in memory at once
+    private final Semaphore in_flight = new Semaphore(Runtime.getRuntime().availableProcessors() * 2);
+    
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder no_artwork = new LongAdder();
+    private final LongAdder uploaded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicInteger unsaved = new AtomicInteger();
+    
+    public LibraryWarmer(PlayerSource player, ArtworkCache cache, ImageHost uploader,
+                         int upload_concurrency, TokenBucket upload_rate, PrintStream out) {
+        this.player = player;
+        this.cache = cache;
+        this.uploader = uploader;
+        this.upload_permits = new Semaphore(upload_concurrency);
+        this.upload_rate = upload_rate;
+        this.out = out;
+    }
+    
+    public void run(List<Long> tracks) throws InterruptedException {
+        var total = tracks.size();
+        var done = new AtomicInteger();
+        var start = System.nanoTime();
+        
+        out.printf("warming artwork for %d tracks%n", total);
+        
+        var progress = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory());
+        progress.scheduleAtFixedRate(() -> printProgress(done.get(), total, start),
+                PROGRESS_INTERVAL.toMillis(), PROGRESS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        
+        var pending = new HashMap<String, CompletableFuture<String>>();
+        var results = new ArrayList<CompletableFuture<String>>();
+        var interrupted = false;
+        try (var cpu = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+             var io = Executors.newVirtualThreadPerTaskExecutor()) {
+            
+            for (var id : tracks) {
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    break;
+                }
+                
+                var track = new StoredTrack(id);
+                if (cache.contains(track)) {
+                    skipped.increment();
+                    done.incrementAndGet();
+                    continue;
+                }
+                
+                byte[] data;
+                try {
+                    data = player.artwork(id).orElse(null);
+                } catch (RuntimeException e) {
+                    log.warn("failed to read artwork of {}: ", track, e);
+                    failed.increment();
+                    done.incrementAndGet();
+                    continue;
+                }
+                if (data == null) {
+                    no_artwork.increment();
+                    done.incrementAndGet();
+                    continue;
+                }
+                
+                var digest = ArtworkCache.digest(data);
+                var url = cache.artworkUrl(digest);
+                if (url != null) {
+                    cache.put(track, digest, url);
+                    deduplicated.increment();
+                    done.incrementAndGet();
+                    continue;
+                }
+                
+                var existing = pending.get(digest);
+                if (existing != null) {
+                    deduplicated.increment();
+                } else {
+                    try {
+                        in_flight.acquire();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                    existing = CompletableFuture.supplyAsync(() -> process(digest, data, track), cpu)
+                            .thenApplyAsync((image) -> upload(image, track), io)
+                            .whenComplete((_, _) -> in_flight.release());
+                    pending.put(digest, existing);
+                }
+                results.add(existing.whenComplete((result, e) -> {
+                    if (e == null && result != null) {
+                        cache.put(track, digest, result);
+                        if (unsaved.incrementAndGet() >= SAVE_EVERY) {
+                            unsaved.set(0);
+                            cache.save();
+                        }
+                    } else {
+                        failed.increment();
+                    }
+                    done.incrementAndGet();
+                }));
+            }
+            
+            // the interrupt has been taken, so neither joining nor closing the pools cuts the uploads in flight short
+            CompletableFuture.allOf(results.toArray(CompletableFuture[]::new))
+                    .exceptionally((_) -> null)
+                    .join();
+            if (Thread.interrupted())
+                interrupted = true;
+        } finally {
+            progress.shutdownNow();
+            cache.save();
+        }
+        
+        printProgress(done.get(), total, start);
+        if (interrupted)
+            throw new InterruptedException();
+        out.printf("done, %d uploaded, %d deduplicated, %d already cached, %d without artwork, %d failed%n",
+                uploaded.sum(), deduplicated.sum(), skipped.sum(), no_artwork.sum(), failed.sum());
+    }
+    
+    private byte[] process(String digest, byte[] data, StoredTrack track) {
+        try {
+            return cache.process(digest, data, "track " + track);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    private String upload(byte[] image, StoredTrack track) {
+        try {
+            upload_permits.acquire();
+            try {
+                upload_rate.acquire();
+                var url = uploader.upload(image, "track " + track);
+                if (url != null)
+                    uploaded.increment();
+                return url;
+            } finally {
+                upload_permits.release();
+            }
+        } catch (IOException e) {
+            log.warn("failed to upload artwork of {}: ", track, e);
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+    
+    private void printProgress(int done, int total, long start) {
+        var elapsed = Duration.ofNanos(System.nanoTime() - start);
+        var rate = done / Math.max(1e-3, elapsed.toMillis() / 1000.0);
+        var eta = (rate > 0) ? Duration.ofSeconds((long) ((total - done) / rate)) : null;
+        out.printf("%d/%d tracks (%.1f%%), %d uploaded, %.2f tracks/s, elapsed %s, eta %s%n",
+                done, total, (total == 0) ? 100.0 : done * 100.0 / total, uploaded.sum(), rate,
+                format(elapsed), (eta == null) ? "unknown" : format(eta));
+    }
+    
+    private static String format(Duration duration) {
+        return "%d:%02d:%02d".formatted(duration.toHours(), duration.toMinutesPart(), duration.toSecondsPart());
+    }
+}
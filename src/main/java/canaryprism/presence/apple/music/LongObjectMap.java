@@ -0,0 +1,137 @@
+package canaryprism.presence.apple.music;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * open addressing hash map from primitive {@code long} keys to non-null values, lookups don't box the key or
+ * allocate anything
+ * <p>
+ * not thread safe
+ */
+public final class LongObjectMap<V> {
+    
+    private static final int MINIMUM_CAPACITY = 16;
+    
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    
+    public LongObjectMap() {
+        this(MINIMUM_CAPACITY);
+    }
+    
+    public LongObjectMap(int expected_size) {
+        var capacity = Math.max(MINIMUM_CAPACITY, Integer.highestOneBit(Math.max(1, expected_size) * 2 - 1) << 1);
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return (V) values[i];
+        }
+        return null;
+    }
+    
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        Objects.requireNonNull(value, "value");
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                var previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length)
+            resize(keys.length * 2);
+        return null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                break;
+        }
+        if (values[i] == null)
+            return null;
+        
+        var previous = (V) values[i];
+        values[i] = null;
+        size--;
+        
+        // shift the rest of the probe run back so lookups never stop at the hole early
+        for (int hole = i, j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            var home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                values[j] = null;
+                hole = j;
+            }
+        }
+        return previous;
+    }
+    
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null)
+                consumer.accept(keys[i], (V) values[i]);
+        }
+    }
+    
+    private int slot(long key) {
+        var hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+    
+    private void resize(int capacity) {
+        var old_keys = keys;
+        var old_values = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_values[i] == null)
+                continue;
+            int j = slot(old_keys[i]);
+            while (values[j] != null)
+                j = (j + 1) & mask;
+            keys[j] = old_keys[i];
+            values[j] = old_values[i];
+        }
+    }
+    
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+}
@@ -1,98 +1,66 @@
 package canaryprism.presence.apple.music;
 
-import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.mizosoft.methanol.MultipartBodyPublisher;
-import com.tagtraum.japlscript.execution.JaplScriptException;
-import com.tagtraum.japlscript.language.Tdta;
 import com.tagtraum.macos.music.Application;
-import com.tagtraum.macos.music.Epls;
-import com.tagtraum.macos.music.Track;
-import de.jcm.discordgamesdk.ActivityManager;
 import de.jcm.discordgamesdk.Core;
 import de.jcm.discordgamesdk.CreateParams;
-import de.jcm.discordgamesdk.activity.Activity;
-import de.jcm.discordgamesdk.activity.ActivityType;
 import dev.dirs.ProjectDirectories;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
 import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Base64;
-import java.util.Optional;
+import java.time.InstantSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
 import java.util.concurrent.*;
 
-@CommandLine.Command(subcommands = Main.Set.class)
+@CommandLine.Command(subcommands = { Main.Set.class, Main.Warm.class, Main.Train.class, Main.Record.class, Main.Replay.class })
 public class Main implements Runnable {
     
     private static final ProjectDirectories DIRS = ProjectDirectories.from("", "canaryprism", "AppleMusicPresence");
-    public static final int LENGTH_LIMIT = 128;
+    private static final long DEFAULT_PROCESSED_CACHE_MIB = 256;
+    private static final long DEFAULT_DWELL_MILLIS = 1500;
+    // discord allows 5 activity updates every 20 seconds
+    private static final double DEFAULT_PRESENCE_RATE = 15;
+    private static final int PRESENCE_BURST = 5;
     
     static {
         System.setProperty("canaryprism.presence.apple.music.logdir", Path.of(DIRS.dataDir, "logs").toString());
-        ImageIO.scanForPlugins();
     }
     
-    public static final int MAXIMUM_IMAGE_CACHE_SIZE = 2048;
-    
     private static final Logger log = LoggerFactory.getLogger(Main.class);
     
-    private static final Application app = Application.getInstance();
-    
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
-                    .uncaughtExceptionHandler((_, e) -> log.error("exception in scheduled executor: ", e))
-                    .factory());
-    private final HttpClient client = HttpClient.newHttpClient();
-    
-    private ActivityManager activity_manager;
-    
-    private AsyncLoadingCache<TrackContainer, String> image_cache;
-    
-    private String fallback_image;
+    private PresenceLoop presence_loop;
     
     @Override
     public void run() {
         
         System.load("/Users/mia/Downloads/discord_game_sdk/discord_game_sdk/lib/aarch64/discord_game_sdk.dylib");
         
-        var config_path = Path.of(DIRS.configDir);
-        if (Files.notExists(config_path)) {
-            log.debug("config path '{}' doesn't exist, creating directories", config_path);
-            try {
-                Files.createDirectories(config_path);
-            } catch (IOException e) {
-                throw new RuntimeException("failed to create directory " + config_path, e);
-            }
-        }
+        var config_path = directory(Path.of(DIRS.configDir));
         
-        var image_cache_path = Path.of(DIRS.cacheDir, "images");
-        if (Files.notExists(image_cache_path)) {
-            log.debug("image cache path '{}' doesn't exist, creating directories", image_cache_path);
-            try {
-                Files.createDirectories(image_cache_path);
-            } catch (IOException e) {
-                throw new RuntimeException("failed to create directory " + image_cache_path, e);
-            }
-        }
+        var cache_path = directory(Path.of(DIRS.cacheDir));
+        
+        // picocli builds this command for every subcommand too, so nothing is started until it's the one running
+        var lanes = new ExecutionLanes();
+        var client = ImageUploader.newClient(lanes.io());
         
+        var image_cache_store = openImageCacheStore(cache_path);
+
 //        var event_handler = new DiscordEventHandlers();
 //        event_handler.ready = (user) -> log.info("Ready: {}", user.username);
         
@@ -106,223 +74,157 @@ public class Main implements Runnable {
         
         log.info("using application id '{}'", application_id);
         
-        var api_key_path = config_path.resolve("api_key");
-        String api_key;
-        try {
-            api_key = Files.readString(api_key_path);
-        } catch (IOException e) {
-            throw new RuntimeException("failed to read api key " + api_key_path, e);
-        }
-        
+        String fallback_image = null;
         var fallback_image_path = config_path.resolve("fallback_image");
         try {
-            this.fallback_image = Files.readString(fallback_image_path);
+            fallback_image = Files.readString(fallback_image_path);
         } catch (IOException e) {
             log.warn("failed to load fallback image: ", e);
         }
         
+        var artwork_processor = readArtworkProcessor(config_path);
+        
+        var polling = readSetting(config_path, "polling", PollingPolicy.Preset.DEFAULT, PollingPolicy.Preset::parse);
+        
+        var dwell = Duration.ofMillis(readSetting(config_path, "dwell", DEFAULT_DWELL_MILLIS, (value) -> Long.parseLong(value.strip())));
+        
         
         var create_params = new CreateParams();
         
         create_params.setClientID(application_id);
         create_params.setFlags(CreateParams.Flags.DEFAULT);
-
+        
         var core = new Core(create_params);
         
-        this.activity_manager = core.activityManager();
+        var presence_rate = readSetting(config_path, "presence_rate", DEFAULT_PRESENCE_RATE, (value) -> Double.parseDouble(value.strip()));
+        
+        var presence_sink = new ActivityQueue(new DiscordPresenceSink(core.activityManager()), lanes.callbacks(),
+                new TokenBucket(presence_rate / 60, PRESENCE_BURST), Duration.ofMillis(PresenceLoop.SEEK_TOLERANCE_MILLIS));
+        
+        var player = new CountingPlayerSource(new AppleScriptPlayerSource(Application.getInstance()));
         
         log.info("initialised");
         
         
-        this.image_cache = Caffeine.newBuilder()
-                .maximumSize(MAXIMUM_IMAGE_CACHE_SIZE)
-                .buildAsync((container) -> {
-                    if (!(container instanceof RealTrack(var track)))
-                        return null;
-                    
-                    log.info("album art not found in cache, generating");
-                    
-                    if (track.getArtworks().length == 0)
-                        return null;
-                    var art = track.getArtworks()[0];
-                    var data = art.getRawData().cast(Tdta.class).getTdta();
-                    
-                    data = optimiseImage(data);
-                    
-//                    var payload = new JSONObject()
-//                            .put("key", "6d207e02198a847aa98d0a2a901485a5")
-//                            .put("action", "upload")
-//                            .put("source", Base64.getEncoder().encodeToString(data));
-                    
-                    var encoded = Base64.getMimeEncoder().encodeToString(data);
-//                    var form = new HTTPRequestMultipartBody.Builder()
-//                            .addPart("source", encoded)
-//                            .build();
-                    var form = MultipartBodyPublisher.newBuilder()
-                            .textPart("source", encoded)
-                            .build();
-                    
-//                    System.out.println(encoded);
-                    var request = HttpRequest.newBuilder(URI.create("https://freeimage.host/api/1/upload?key=" + api_key))
-                            .header("Content-Type", form.mediaType().toString())
-                            .POST(form)
-                            .build();
-                    
-                    log.info("uploading image for track {}", track.getName());
-                    
-                    var http_response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                    
-                    var response = new JSONObject(http_response.body());
-                    
-                    try {
-                        return response.getJSONObject("image").getString("url");
-                    } catch (JSONException e) {
-                        log.error("failed to get image url from response:\n{}", response.toString(2), e);
-                        return null;
-                    }
-                });
+        var artwork_cache = new ArtworkCache(player, artwork_processor, openImageHost(config_path, client), image_cache_store,
+                openProcessedImageCache(config_path, cache_path), lanes.io(), lanes.cpu());
         
-        loadImageCache(image_cache_path);
+        // polling starts right away, tracks seen before loading finishes wait on it before uploading anything
+        artwork_cache.loadAsync(cache_path.resolve("images"), lanes.persistence());
         
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> saveImageCache(image_cache_path)));
+        this.presence_loop = new PresenceLoop(lanes, player, presence_sink, artwork_cache, polling.policy(),
+                InstantSource.system(), 1, dwell, fallback_image);
         
+        Runtime.getRuntime().addShutdownHook(new Thread(artwork_cache::save));
         
-        executor.scheduleAtFixedRate(core::runCallbacks, 0, 2, TimeUnit.SECONDS);
         
-        executor.scheduleAtFixedRate(() -> {
-            try {
-                this.checkTrack();
-            } catch (Exception e) {
-                log.error("exception while checking track: ", e);
-            }
-        }, 0, 5, TimeUnit.SECONDS);
+        lanes.callbacks().scheduleAtFixedRate(() -> runCallbacks(core), 0, 2, TimeUnit.SECONDS);
+        
+        presence_loop.start();
+        
+        lanes.persistence().execute(Metrics.get()::registerMBean);
         
-        executor.scheduleAtFixedRate(() -> saveImageCache(image_cache_path), 0, 10, TimeUnit.MINUTES);
+        lanes.persistence().scheduleAtFixedRate(() -> {
+            artwork_cache.save();
+            Metrics.get().logSummary();
+        }, 10, 10, TimeUnit.MINUTES);
     }
     
-    private byte[] optimiseImage(byte[] data) throws IOException {
-        var art = ImageIO.read(new ByteArrayInputStream(data));
-        
-        var max_dimension = Math.max(art.getWidth(), art.getHeight());
-        
-        var image = new BufferedImage(max_dimension, max_dimension, BufferedImage.TYPE_INT_ARGB);
-        
-        var g = image.getGraphics();
-        
-        var blurred = blur(art);
-        
-        {
-            var blurred_min_dimension = Math.min(blurred.getWidth(), blurred.getHeight());
-//            log.info("blurred min dimension: {}", blurred_min_dimension);
-            var scale = (double) max_dimension / blurred_min_dimension;
-            var scaled_width = (int) (blurred.getWidth() * scale);
-            var scaled_height = (int) (blurred.getHeight() * scale);
-            var scaled = blurred.getScaledInstance(scaled_width, scaled_height, BufferedImage.SCALE_SMOOTH);
-            g.drawImage(
-                    scaled,
-                    (max_dimension - scaled_width) / 2,
-                    (max_dimension - scaled_height) / 2,
-                    null
-            );
-        }
-        
-        g.drawImage(art, (max_dimension - art.getWidth()) / 2, (max_dimension - art.getHeight()) / 2, null);
-        try (var baos = new ByteArrayOutputStream()) {
-            
-            ImageIO.write(image, "png", baos);
-            
-            return baos.toByteArray();
+    private static Path directory(Path path) {
+        if (Files.notExists(path)) {
+            log.debug("path '{}' doesn't exist, creating directories", path);
+            try {
+                Files.createDirectories(path);
+            } catch (IOException e) {
+                throw new RuntimeException("failed to create directory " + path, e);
+            }
         }
+        return path;
     }
     
-    private BufferedImage blur(BufferedImage image) {
-        int radius = 100;
-        
-        var kernels = makeKernels(radius);
-        
-        var hop = new ConvolveOp(kernels.horizontal, ConvolveOp.EDGE_ZERO_FILL, null);
-        image = hop.filter(image, null);
-        
-        var vop = new ConvolveOp(kernels.vertical, ConvolveOp.EDGE_ZERO_FILL, null);
-        image = vop.filter(image, null);
-        
-//        return i;
-        return image.getSubimage(radius, radius, image.getWidth() - radius * 2, image.getHeight() - radius * 2);
+    private static ImageCacheStore openImageCacheStore(Path cache_path) {
+        var store = new ImageCacheStore(cache_path.resolve("image_cache"));
+        try {
+            store.lock();
+        } catch (IOException e) {
+            throw new RuntimeException("failed to lock image cache in " + cache_path, e);
+        }
+        return store;
     }
     
-    record KernelTuple(Kernel horizontal, Kernel vertical) {}
+    private static ProcessedImageCache openProcessedImageCache(Path config_path, Path cache_path) {
+        var maximum_size = readSetting(config_path, "processed_cache", DEFAULT_PROCESSED_CACHE_MIB, (value) -> Long.parseLong(value.strip()));
+        // images processed with other settings than the ones readArtworkProcessor uses must not be served
+        var blur_mode = readSetting(config_path, "blur_mode", BlurEngine.Mode.DEFAULT, BlurEngine.Mode::parse);
+        var output = readSetting(config_path, "output", OutputPolicy.Preset.DEFAULT, OutputPolicy.Preset::parse);
+        var variant = (blur_mode + "-" + output).toLowerCase(Locale.ROOT);
+        return new ProcessedImageCache(cache_path.resolve("processed"), variant, maximum_size * 1024 * 1024);
+    }
     
-    private static KernelTuple makeKernels(float radius) {
-        int r = (int) Math.ceil(radius);
-        int rows = r * 2 + 1;
-        float[] matrix = new float[rows];
-        float sigma = radius / 3;
-        float sigma22 = 2 * sigma * sigma;
-        var sigmaPi2 = 2 * Math.PI * sigma;
-        float sqrtSigmaPi2 = (float) Math.sqrt(sigmaPi2);
-        float radius2 = radius * radius;
-        float total = 0;
-        int index = 0;
-        for (int row = -r; row <= r; row++) {
-            float distance = row * row;
-            if (distance > radius2)
-                matrix[index] = 0;
-            else
-                matrix[index] = (float) Math.exp(-(distance)/sigma22) / sqrtSigmaPi2;
-            total += matrix[index];
-            index++;
+    // every line of image_hosts is an endpoint with the same api as freeimage.host and its api key, several of them
+    // are hedged across. without it everything goes to freeimage.host with api_key
+    private static ImageHost openImageHost(Path config_path, HttpClient client) {
+        var hosts_path = config_path.resolve("image_hosts");
+        if (Files.notExists(hosts_path))
+            return new ImageUploader(client, readApiKey(config_path));
+        
+        var hosts = new ArrayList<ImageHost>();
+        try {
+            for (var line : Files.readAllLines(hosts_path)) {
+                if (line.isBlank())
+                    continue;
+                var parts = line.strip().split("\\s+");
+                try {
+                    if (parts.length != 2)
+                        throw new IllegalArgumentException("expected an endpoint and an api key");
+                    hosts.add(new ImageUploader(client, URI.create(parts[0]), parts[1]));
+                } catch (IllegalArgumentException e) {
+                    log.warn("ignoring image host '{}': ", parts[0], e);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("failed to read image hosts " + hosts_path, e);
         }
-        for (int i = 0; i < rows; i++)
-            matrix[i] /= total;
+        if (hosts.isEmpty())
+            throw new RuntimeException("no usable image hosts in " + hosts_path);
         
-        return new KernelTuple(new Kernel(rows, 1, matrix), new Kernel(1, rows, matrix));
+        var host = (hosts.size() == 1) ? hosts.getFirst() : new HedgedImageHost(hosts);
+        log.info("using image host {}", host.name());
+        return host;
     }
     
-    private void saveImageCache(Path directory) {
-        log.info("saving image cache to '{}'", directory);
-        try (var files = Files.list(directory)) {
-            files.filter(Files::isRegularFile)
-                    .forEach((path) -> {
-                        try {
-                            Files.delete(path);
-                        } catch (IOException e) {
-                            log.error("failed to clear cache directory: ", e);
-                        }
-                    });
+    private static String readApiKey(Path config_path) {
+        var api_key_path = config_path.resolve("api_key");
+        try {
+            return Files.readString(api_key_path);
         } catch (IOException e) {
-            log.error("failed to access image cache path '{}': ", directory, e);
+            throw new RuntimeException("failed to read api key " + api_key_path, e);
         }
-        image_cache.synchronous()
-                .asMap()
-                .forEach((container, url) -> {
-                    try {
-                        var path = directory.resolve(String.valueOf(container.getTrackId()));
-                        Files.writeString(path, url, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                    } catch (IOException e) {
-                        log.error("failed to write image cache to disk: ", e);
-                    } catch (JaplScriptException e) {
-                        log.error("failed to get track id for {}", container);
-                    }
-                });
     }
     
-    private void loadImageCache(Path directory) {
-        log.info("loading image cache from '{}'", directory);
-        try (var files = Files.list(directory)) {
-            files.filter(Files::isRegularFile)
-                    .forEach((path) -> {
-                        try {
-                            var url = Files.readString(path);
-                            image_cache.put(new StoredTrack(path.getFileName().toString()), CompletableFuture.completedFuture(url));
-                        } catch (IOException e) {
-                            log.error("failed to load image cache from disk: ", e);
-                        }
-                    });
-        } catch (IOException e) {
-            log.error("failed to access image cache path '{}': ", directory, e);
-        }
+    private static ArtworkProcessor readArtworkProcessor(Path config_path) {
+        var blur_mode = readSetting(config_path, "blur_mode", BlurEngine.Mode.DEFAULT, BlurEngine.Mode::parse);
+        var output = readSetting(config_path, "output", OutputPolicy.Preset.DEFAULT, OutputPolicy.Preset::parse);
+        var memory_budget = readSetting(config_path, "memory_budget", MemoryBudget.defaultBytes() / (1024 * 1024), (value) -> Long.parseLong(value.strip()));
+        return new ArtworkProcessor(blur_mode.engine(), output.policy(), new MemoryBudget(memory_budget * 1024 * 1024));
     }
     
+    private static <T> T readSetting(Path config_path, String name, T fallback, Function<String, T> parser) {
+        var path = config_path.resolve(name);
+        var setting = fallback;
+        if (Files.exists(path)) {
+            try {
+                setting = parser.apply(Files.readString(path));
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("failed to load {}, using {}: ", name, fallback, e);
+            }
+        }
+        
+        log.info("using {} '{}'", name, setting);
+        
+        return setting;
+    }
+
 //    private byte[] toWebp(byte[] data) {
 //        try (var baos = new ByteArrayOutputStream()) {
 //            var image = ImageIO.read(new ByteArrayInputStream(data));
@@ -341,99 +243,19 @@ public class Main implements Runnable {
 //    }
     
     
-    private volatile int last_track_id;
-    private volatile boolean status_active = false;
+    private long last_callbacks;
     
-    private void checkTrack() {
-        checkTrack(false);
-    }
-    private void checkTrack(boolean force) {
-        if (app.getPlayerState() == Epls.PLAYING) {
-            var track = app.getCurrentTrack();
-            if (!status_active || track.getId() != last_track_id || force) {
-                last_track_id = track.getId();
-                
-                synchronized (this) {
-                    if (track_end_check != null)
-                        track_end_check.cancel(false);
-                    track_end_check = null;
-                }
-                
-                updatePresence(track);
-                status_active = true;
-            }
-        } else if (status_active) {
-            status_active = false;
-            
-            activity_manager.clearActivity();
-            
-            synchronized (this) {
-                if (track_end_check != null)
-                    track_end_check.cancel(false);
-                track_end_check = null;
-            }
-            
-            log.info("presence cleared");
-        }
-    }
-    
-    private volatile ScheduledFuture<?> track_end_check;
-    
-    private void updatePresence(Track track) {
-        var activity = new Activity();
-        
-        activity.setType(ActivityType.LISTENING);
-        
-        var timestamps = activity.timestamps();
-        
-        var now = Instant.now();
-        
-        timestamps.setStart(now.minus(Duration.ofMillis(((long) (app.getPlayerPosition() * 1000)))));
-        
-        var remaining = (long)((track.getFinish() - app.getPlayerPosition()) * 1000);
-        
-        timestamps.setEnd(now.plus(Duration.ofMillis(remaining)));
-        
-        
-        activity.setDetails(track.getName());
-        activity.setState(Optional.of(track.getArtist())
-                .filter((e) -> !e.isEmpty())
-                .map((e) -> e.substring(0, Math.min(e.length(), LENGTH_LIMIT)))
-                .orElse(null));
-        
-        var assets = activity.assets();
-        
-        var future_image_url = image_cache.get(new RealTrack(track));
-        
-        var image_url = future_image_url.getNow(fallback_image);
-        
-        assets.setLargeImage(image_url);
-        assets.setLargeText(Optional.of(track.getAlbum())
-                .filter((e) -> !e.isEmpty())
-                .map((e) -> e.substring(0, Math.min(e.length(), LENGTH_LIMIT)))
-                .orElse(null));
-        
-        log.info("presence image: {}", image_url);
-        
-        if (!future_image_url.isDone()) {
-            future_image_url.thenRunAsync(() -> checkTrack(true));
-        }
-        
-        
-        log.info("presence updated: {} - {}", track.getArtist(), track.getName());
-        
-        activity_manager.updateActivity(activity);
-        
-        synchronized (this) {
-            if (track_end_check == null) {
-                track_end_check = executor.schedule(() -> checkTrack(true), remaining + 1000, TimeUnit.MILLISECONDS);
-            }
-        }
+    private void runCallbacks(Core core) {
+        var now = System.nanoTime();
+        if (last_callbacks != 0)
+            Metrics.get().record(Metrics.Stage.CALLBACK_INTERVAL, now - last_callbacks);
+        last_callbacks = now;
+        core.runCallbacks();
     }
     
     @CommandLine.Command(
             name = "set",
-            subcommands = { Set.ApplicationId.class, Set.ApiKey.class, Set.FallbackImage.class }
+            subcommands = { Set.ApplicationId.class, Set.ApiKey.class, Set.FallbackImage.class, Set.BlurMode.class, Set.Polling.class, Set.Output.class, Set.Memory.class, Set.ProcessedCache.class, Set.Dwell.class, Set.PresenceRate.class, Set.ImageHosts.class }
     )
     static class Set {
         @CommandLine.Command(name = "application_id")
@@ -470,6 +292,112 @@ public class Main implements Runnable {
             }
         }
         
+        @CommandLine.Command(name = "blur_mode")
+        static class BlurMode implements Runnable {
+            
+            @CommandLine.Parameters(index = "0")
+            private BlurEngine.Mode blur_mode;
+            
+            @Override
+            public void run() {
+                write("blur_mode", blur_mode.name());
+            }
+        }
+        
+        @CommandLine.Command(name = "polling")
+        static class Polling implements Runnable {
+            
+            @CommandLine.Parameters(index = "0")
+            private PollingPolicy.Preset polling;
+            
+            @Override
+            public void run() {
+                write("polling", polling.name());
+            }
+        }
+        
+        @CommandLine.Command(name = "output")
+        static class Output implements Runnable {
+            
+            @CommandLine.Parameters(index = "0")
+            private OutputPolicy.Preset output;
+            
+            @Override
+            public void run() {
+                write("output", output.name());
+            }
+        }
+        
+        // in MiB
+        @CommandLine.Command(name = "memory_budget")
+        static class Memory implements Runnable {
+            
+            @CommandLine.Parameters(index = "0")
+            private long memory_budget;
+            
+            @Override
+            public void run() {
+                write("memory_budget", String.valueOf(memory_budget));
+            }
+        }
+        
+        // in MiB
+        @CommandLine.Command(name = "processed_cache")
+        static class ProcessedCache implements Runnable {
+            
+            @CommandLine.Parameters(index = "0")
+            private long processed_cache;
+            
+            @Override
+            public void run() {
+                write("processed_cache", String.valueOf(processed_cache));
+            }
+        }
+        
+        // in milliseconds
+        @CommandLine.Command(name = "dwell")
+        static class Dwell implements Runnable {
+            
+            @CommandLine.Parameters(index = "0")
+            private long dwell;
+            
+            @Override
+            public void run() {
+                write("dwell", String.valueOf(dwell));
+            }
+        }
+        
+        // activity updates per minute
+        @CommandLine.Command(name = "presence_rate")
+        static class PresenceRate implements Runnable {
+            
+            @CommandLine.Parameters(index = "0")
+            private double presence_rate;
+            
+            @Override
+            public void run() {
+                write("presence_rate", String.valueOf(presence_rate));
+            }
+        }
+        
+        // pairs of an endpoint and its api key
+        @CommandLine.Command(name = "image_hosts")
+        static class ImageHosts implements Runnable {
+            
+            @CommandLine.Parameters(arity = "2..*")
+            private List<String> image_hosts;
+            
+            @Override
+            public void run() {
+                if (image_hosts.size() % 2 != 0)
+                    throw new CommandLine.ParameterException(new CommandLine(this), "every endpoint needs an api key");
+                var lines = new StringBuilder();
+                for (int i = 0; i < image_hosts.size(); i += 2)
+                    lines.append(image_hosts.get(i)).append(' ').append(image_hosts.get(i + 1)).append('\n');
+                write("image_hosts", lines.toString());
+            }
+        }
+        
         private static void write(String file_name, String data) {
             var path = Path.of(DIRS.configDir, file_name);
             try {
@@ -481,6 +409,199 @@ public class Main implements Runnable {
         }
     }
     
+    @CommandLine.Command(name = "warm")
+    static class Warm implements Runnable {
+        
+        @CommandLine.Option(names = "--playlist")
+        private String playlist;
+        
+        @CommandLine.Option(names = "--concurrency", defaultValue = "4")
+        private int concurrency;
+        
+        // uploads per minute
+        @CommandLine.Option(names = "--rate", defaultValue = "30")
+        private double rate;
+        
+        @Override
+        public void run() {
+            var config_path = directory(Path.of(DIRS.configDir));
+            var cache_path = directory(Path.of(DIRS.cacheDir));
+            
+            try (var lanes = new ExecutionLanes()) {
+                var processor = readArtworkProcessor(config_path);
+                var uploader = openImageHost(config_path, ImageUploader.newClient(lanes.io()));
+                var player = new CountingPlayerSource(new AppleScriptPlayerSource(Application.getInstance()));
+                
+                var cache = new ArtworkCache(player, processor, uploader, openImageCacheStore(cache_path),
+                        openProcessedImageCache(config_path, cache_path), lanes.io(), lanes.cpu());
+                cache.load(cache_path.resolve("images"));
+                
+                // ctrl-c interrupts the warmer and waits for it, so the uploads in flight finish and get saved
+                var thread = Thread.currentThread();
+                var hook = new Thread(() -> {
+                    thread.interrupt();
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                Runtime.getRuntime().addShutdownHook(hook);
+                
+                var warmer = new LibraryWarmer(player, cache, uploader,
+                        concurrency, new TokenBucket(rate / 60, concurrency), System.out);
+                try {
+                    warmer.run(player.tracks(playlist));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.out.println("interrupted, progress so far has been saved");
+                }
+                Metrics.get().logSummary();
+                
+                try {
+                    Runtime.getRuntime().removeShutdownHook(hook);
+                } catch (IllegalStateException e) {
+                    // already shutting down
+                }
+            }
+        }
+    }
+    
+    @CommandLine.Command(name = "record")
+    static class Record implements Runnable {
+        
+        @CommandLine.Parameters(index = "0")
+        private Path directory;
+        
+        // milliseconds between polls
+        @CommandLine.Option(names = "--interval", defaultValue = "250")
+        private long interval;
+        
+        // minutes, recording also stops when interrupted
+        @CommandLine.Option(names = "--length", defaultValue = "60")
+        private long length;
+        
+        @Override
+        public void run() {
+            var recorder = new SessionRecorder(new AppleScriptPlayerSource(Application.getInstance()), directory,
+                    Duration.ofMillis(interval));
+            
+            var thread = Thread.currentThread();
+            var hook = new Thread(() -> {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(hook);
+            
+            System.out.println("recording to " + directory + ", stop with ctrl-c");
+            try {
+                recorder.record(Duration.ofMinutes(length));
+            } catch (IOException e) {
+                throw new RuntimeException("failed to record session to " + directory, e);
+            }
+            
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+    }
+    
+    /**
+     * replays a recorded session with the current settings, see {@link SessionReplay}
+     */
+    @CommandLine.Command(name = "replay")
+    static class Replay implements Runnable {
+        
+        @CommandLine.Parameters(index = "0")
+        private Path directory;
+        
+        @CommandLine.Option(names = "--speed", defaultValue = "10")
+        private double speed;
+        
+        @Override
+        public void run() {
+            var config_path = directory(Path.of(DIRS.configDir));
+            
+            var polling = readSetting(config_path, "polling", PollingPolicy.Preset.DEFAULT, PollingPolicy.Preset::parse);
+            var dwell = readSetting(config_path, "dwell", DEFAULT_DWELL_MILLIS, (value) -> Long.parseLong(value.strip()));
+            var presence_rate = readSetting(config_path, "presence_rate", DEFAULT_PRESENCE_RATE, (value) -> Double.parseDouble(value.strip()));
+            
+            try {
+                var replay = new SessionReplay(RecordedSession.read(directory), speed, readArtworkProcessor(config_path),
+                        SessionReplay.stubHost(), polling.policy(), Duration.ofMillis(dwell), presence_rate, PRESENCE_BURST);
+                System.out.println(replay.run());
+            } catch (IOException e) {
+                throw new RuntimeException("failed to replay session " + directory, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.out.println("interrupted");
+            }
+            Metrics.get().logSummary();
+        }
+    }
+    
+    /**
+     * runs the startup path and one artwork through the pipeline without discord or Music, for recording a class
+     * data sharing archive with {@code gradle appCds}
+     */
+    @CommandLine.Command(name = "train", hidden = true)
+    static class Train implements Runnable {
+        
+        @Override
+        public void run() {
+            var config_path = directory(Path.of(DIRS.configDir));
+            
+            try (var lanes = new ExecutionLanes()) {
+                var processor = readArtworkProcessor(config_path);
+                readSetting(config_path, "polling", PollingPolicy.Preset.DEFAULT, PollingPolicy.Preset::parse);
+                ImageUploader.newClient(lanes.io());
+                
+                var image = new BufferedImage(1200, 1200, BufferedImage.TYPE_INT_RGB);
+                var g = image.createGraphics();
+                try {
+                    g.setPaint(new GradientPaint(0, 0, Color.MAGENTA, 1200, 1200, Color.CYAN));
+                    g.fillRect(0, 0, 1200, 1200);
+                } finally {
+                    g.dispose();
+                }
+                var baos = new ByteArrayOutputStream();
+                ImageIO.write(image, "jpg", baos);
+                
+                var data = baos.toByteArray();
+                ArtworkCache.digest(data);
+                var processed = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return processor.optimiseImage(data, "training artwork", lanes.cpu());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, lanes.cpu()).join();
+                
+                var queue = new ActivityQueue(new PresenceSink() {
+                    @Override
+                    public void update(Presence presence) {}
+                    
+                    @Override
+                    public void clear() {}
+                }, lanes.callbacks(), new TokenBucket(1, 2), Duration.ofMillis(PresenceLoop.SEEK_TOLERANCE_MILLIS));
+                var now = Instant.now();
+                queue.update(new Presence("training", null, "training.jpg", null, now, now.plusSeconds(1)));
+                queue.clear();
+                
+                log.info("trained with {} bytes of artwork", processed.length);
+                Metrics.get().logSummary();
+            } catch (IOException e) {
+                throw new RuntimeException("failed to generate training artwork", e);
+            }
+        }
+    }
+    
     public static void main(String[] args) {
         new CommandLine(new Main()).execute(args);
     }
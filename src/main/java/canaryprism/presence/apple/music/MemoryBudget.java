@@ -0,0 +1,57 @@
+package canaryprism.presence.apple.music;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * bounds how much memory image jobs running at the same time may use between them
+ * <p>
+ * a job asks for its estimate up front and blocks until that much of the budget is free. a job larger than the
+ * whole budget waits for the budget to be empty and then runs alone
+ */
+public final class MemoryBudget {
+    
+    private static final int KIB = 1024;
+    
+    private final Semaphore permits;
+    private final int capacity;
+    
+    public MemoryBudget(long bytes) {
+        this.capacity = (int) Math.clamp(bytes / KIB, 1, Integer.MAX_VALUE);
+        this.permits = new Semaphore(capacity, true);
+    }
+    
+    /**
+     * a quarter of the maximum heap, but at least 64 MiB
+     */
+    public static long defaultBytes() {
+        return Math.max(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+    }
+    
+    public Reservation reserve(long bytes) throws InterruptedException {
+        var count = (int) Math.clamp(Math.ceilDiv(bytes, KIB), 1, capacity);
+        permits.acquire(count);
+        return new Reservation(count);
+    }
+    
+    public long availableBytes() {
+        return (long) permits.availablePermits() * KIB;
+    }
+    
+    public final class Reservation implements AutoCloseable {
+        
+        private final int count;
+        private boolean released;
+        
+        private Reservation(int count) {
+            this.count = count;
+        }
+        
+        @Override
+        public void close() {
+            if (released)
+                return;
+            released = true;
+            permits.release(count);
+        }
+    }
+}
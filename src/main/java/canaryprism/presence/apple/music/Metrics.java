@@ -0,0 +1,231 @@
+package canaryprism.presence.apple.music;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * process wide latencies and counters of the presence pipeline
+ * <p>
+ * stages and counters are enums indexing into arrays, so recording on the polling path doesn't allocate
+ */
+public final class Metrics implements MetricsMXBean {
+    
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+    
+    private static final Metrics INSTANCE = new Metrics();
+    
+    public enum Stage {
+        SNAPSHOT,
+        ARTWORK_READ,
+        UPCOMING,
+        TRACK_LIST,
+        DECODE,
+        BLUR,
+        // scaling the blurred backdrop and drawing the artwork over it
+        COMPOSITE,
+        ENCODE,
+        OPTIMISE,
+        UPLOAD,
+        ARTWORK_LOAD,
+        UPDATE_ACTIVITY,
+        // between discord callback runs, stays at the callback period while the lane keeps up
+        CALLBACK_INTERVAL,
+        // from noticing a new track to queueing it with its artwork
+        TRACK_TO_PRESENCE,
+        // from queueing a presence to sending it, coalesced updates count from the first one queued
+        PRESENCE_QUEUE,
+        // from the jvm starting to the first presence being sent, recorded once
+        STARTUP_TO_PRESENCE;
+        
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+    
+    public enum Counter {
+        POLLS,
+        IPC_CALLS,
+        PRESENCE_UPDATES,
+        // queued presence replaced by a newer one before it was sent
+        PRESENCE_COALESCED,
+        // queued presence dropped because it looked like the one already shown
+        PRESENCE_UNCHANGED,
+        UPLOADS,
+        UPLOAD_BYTES,
+        UPLOAD_RETRIES,
+        UPLOAD_FAILURES,
+        // artwork loads called off because the track stopped being wanted
+        CANCELLED_LOADS;
+        
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+    
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Map<String, Supplier<CacheStats>> caches = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    
+    private Metrics() {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+    }
+    
+    public static Metrics get() {
+        return INSTANCE;
+    }
+    
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+    
+    /**
+     * records the time since {@code start}, a value from {@link System#nanoTime}
+     */
+    public void recordSince(Stage stage, long start) {
+        record(stage, System.nanoTime() - start);
+    }
+    
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+    
+    public void add(Counter counter, long amount) {
+        counters[counter.ordinal()].add(amount);
+    }
+    
+    public LatencyHistogram histogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+    
+    public long count(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+    
+    public void registerCache(String name, Supplier<CacheStats> stats) {
+        caches.put(name, stats);
+    }
+    
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+    
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("canaryprism.presence.apple.music:type=Metrics"));
+        } catch (JMException e) {
+            log.warn("failed to register metrics mbean: ", e);
+        }
+    }
+    
+    @Override
+    public Map<String, Long> getCounters() {
+        var result = new TreeMap<String, Long>();
+        for (var counter : Counter.values())
+            result.put(counter.label, count(counter));
+        return result;
+    }
+    
+    @Override
+    public Map<String, Long> getGauges() {
+        var result = new TreeMap<String, Long>();
+        gauges.forEach((name, value) -> result.put(name, value.getAsLong()));
+        return result;
+    }
+    
+    @Override
+    public Map<String, Long> getLatencyCounts() {
+        return latencies(LatencyHistogram::count);
+    }
+    
+    @Override
+    public Map<String, Double> getLatencyMeans() {
+        return latenciesMillis(LatencyHistogram::mean);
+    }
+    
+    @Override
+    public Map<String, Double> getLatencyMedians() {
+        return latenciesMillis((histogram) -> histogram.percentile(0.5));
+    }
+    
+    @Override
+    public Map<String, Double> getLatency99thPercentiles() {
+        return latenciesMillis((histogram) -> histogram.percentile(0.99));
+    }
+    
+    @Override
+    public Map<String, Double> getLatencyMaximums() {
+        return latenciesMillis(LatencyHistogram::max);
+    }
+    
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        var result = new TreeMap<String, Double>();
+        caches.forEach((name, stats) -> result.put(name, stats.get().hitRate()));
+        return result;
+    }
+    
+    @Override
+    public Map<String, Double> getCacheAverageLoadMillis() {
+        var result = new TreeMap<String, Double>();
+        caches.forEach((name, stats) -> result.put(name, stats.get().averageLoadPenalty() / 1e6));
+        return result;
+    }
+    
+    @Override
+    public String getSummary() {
+        var summary = new StringBuilder("metrics:");
+        for (var stage : Stage.values()) {
+            var histogram = histogram(stage);
+            if (histogram.count() == 0)
+                continue;
+            summary.append(String.format(Locale.ROOT, "%n  %-19s n=%-6d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+                    stage.label, histogram.count(), histogram.mean() / 1e6,
+                    histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6, histogram.max() / 1e6));
+        }
+        caches.forEach((name, supplier) -> {
+            var stats = supplier.get();
+            summary.append(String.format(Locale.ROOT, "%n  %-19s hits=%d misses=%d hit rate=%.1f%% load=%.1fms",
+                    name + " cache", stats.hitCount(), stats.missCount(), stats.hitRate() * 100,
+                    stats.averageLoadPenalty() / 1e6));
+        });
+        var polls = count(Counter.POLLS);
+        summary.append(String.format(Locale.ROOT, "%n  %s, %.2f ipc calls per poll",
+                getCounters(), (polls == 0) ? 0.0 : (double) count(Counter.IPC_CALLS) / polls));
+        if (!gauges.isEmpty())
+            summary.append(String.format(Locale.ROOT, "%n  %s", getGauges()));
+        return summary.toString();
+    }
+    
+    public void logSummary() {
+        log.info(getSummary());
+    }
+    
+    private Map<String, Long> latencies(ToLongFunction<LatencyHistogram> value) {
+        var result = new TreeMap<String, Long>();
+        for (var stage : Stage.values())
+            result.put(stage.label, value.applyAsLong(histogram(stage)));
+        return result;
+    }
+    
+    private Map<String, Double> latenciesMillis(ToDoubleFunction<LatencyHistogram> value) {
+        var result = new TreeMap<String, Double>();
+        for (var stage : Stage.values())
+            result.put(stage.label, value.applyAsDouble(histogram(stage)) / 1e6);
+        return result;
+    }
+}
@@ -0,0 +1,29 @@
+package canaryprism.presence.apple.music;
+
+import java.util.Map;
+
+/**
+ * what {@link Metrics} shows over jmx, latencies are in milliseconds
+ */
+public interface MetricsMXBean {
+    
+    Map<String, Long> getCounters();
+    
+    Map<String, Long> getGauges();
+    
+    Map<String, Long> getLatencyCounts();
+    
+    Map<String, Double> getLatencyMeans();
+    
+    Map<String, Double> getLatencyMedians();
+    
+    Map<String, Double> getLatency99thPercentiles();
+    
+    Map<String, Double> getLatencyMaximums();
+    
+    Map<String, Double> getCacheHitRates();
+    
+    Map<String, Double> getCacheAverageLoadMillis();
+    
+    String getSummary();
+}
@@ -0,0 +1,93 @@
+package canaryprism.presence.apple.music;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * what optimised artwork is encoded as
+ *
+ * @param maximumEdge the largest width and height of the output, larger artwork is scaled down
+ * @param byteBudget the size the output should fit in
+ * @param encodings encodings to try in order, the first that fits the budget is used and the smallest one
+ *                  otherwise. encodings without an image writer installed are skipped
+ */
+public record OutputPolicy(int maximumEdge, int byteBudget, List<Encoding> encodings) {
+    
+    public OutputPolicy {
+        if (maximumEdge < 1)
+            throw new IllegalArgumentException("maximum edge must be positive, got " + maximumEdge);
+        if (encodings.isEmpty())
+            throw new IllegalArgumentException("no encodings given");
+        encodings = List.copyOf(encodings);
+    }
+    
+    public enum Format {
+        PNG("png", "png", null),
+        JPEG("jpeg", "jpg", null),
+        WEBP("webp", "webp", "Lossy");
+        
+        private final String format_name;
+        private final String extension;
+        private final String compression_type;
+        
+        Format(String format_name, String extension, String compression_type) {
+            this.format_name = format_name;
+            this.extension = extension;
+            this.compression_type = compression_type;
+        }
+        
+        public String formatName() {
+            return format_name;
+        }
+        
+        public String extension() {
+            return extension;
+        }
+        
+        public String compressionType() {
+            return compression_type;
+        }
+    }
+    
+    /**
+     * @param quality the writer's compression quality, for png 0 is the highest deflate level
+     */
+    public record Encoding(Format format, float quality) {
+        
+        @Override
+        public String toString() {
+            return format.extension() + "@" + quality;
+        }
+    }
+    
+    public enum Preset {
+        LOSSLESS(new OutputPolicy(Integer.MAX_VALUE, Integer.MAX_VALUE, List.of(
+                new Encoding(Format.PNG, 0)))),
+        BALANCED(new OutputPolicy(1024, 256 * 1024, List.of(
+                new Encoding(Format.WEBP, 0.9f),
+                new Encoding(Format.JPEG, 0.9f),
+                new Encoding(Format.JPEG, 0.8f),
+                new Encoding(Format.JPEG, 0.65f)))),
+        SMALL(new OutputPolicy(512, 64 * 1024, List.of(
+                new Encoding(Format.WEBP, 0.8f),
+                new Encoding(Format.JPEG, 0.85f),
+                new Encoding(Format.JPEG, 0.7f),
+                new Encoding(Format.JPEG, 0.5f))));
+        
+        public static final Preset DEFAULT = BALANCED;
+        
+        private final OutputPolicy policy;
+        
+        Preset(OutputPolicy policy) {
+            this.policy = policy;
+        }
+        
+        public OutputPolicy policy() {
+            return policy;
+        }
+        
+        public static Preset parse(String name) {
+            return valueOf(name.strip().toUpperCase(Locale.ROOT));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package canaryprism.presence.apple.music;
+
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * everything a poll needs to know about the player, read in one go
+ *
+ * @param track the current track, {@code null} if there is none
+ */
+public record PlayerSnapshot(Instant timestamp, State state, double position, TrackInfo track) {
+    
+    public boolean playing() {
+        return state == State.PLAYING && track != null;
+    }
+    
+    public long remainingMillis() {
+        return (track == null) ? 0 : (long) ((track.finish() - position) * 1000);
+    }
+    
+    public record TrackInfo(int id, long persistentId, String name, String artist, String album, double finish) {}
+    
+    public enum State {
+        PLAYING, PAUSED, STOPPED, FAST_FORWARDING, REWINDING;
+        
+        public static State parse(String text) {
+            return valueOf(text.strip().replace(' ', '_').toUpperCase(Locale.ROOT));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package canaryprism.presence.apple.music;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface PlayerSource {
+    
+    PlayerSnapshot snapshot();
+    
+    /**
+     * @return the raw data of the first artwork of the track, empty if the track has none or can't be found
+     */
+    Optional<byte[]> artwork(long persistent_id);
+    
+    /**
+     * @return the persistent IDs of up to {@code count} tracks that will play after the current one, empty if
+     * that can't be predicted
+     */
+    List<Long> upcoming(int count);
+    
+    /**
+     * @param playlist the name of the playlist, or {@code null} for the whole library
+     * @return the persistent IDs of every track in the playlist
+     */
+    List<Long> tracks(String playlist);
+}
@@ -0,0 +1,12 @@
+package canaryprism.presence.apple.music;
+
+public class PlayerSourceException extends RuntimeException {
+    
+    public PlayerSourceException(String message) {
+        super(message);
+    }
+    
+    public PlayerSourceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,91 @@
+package canaryprism.presence.apple.music;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+
+/**
+ * decides how long to wait before the next poll from what the last one saw
+ * <p>
+ * while playing it polls at the policy's interval but wakes up right after the predicted end of the track, and
+ * polls at the minimum interval for a while after any change the end of a track doesn't explain since those are
+ * usually the user skipping through tracks. while paused or stopped the interval backs off exponentially
+ */
+public final class PollScheduler {
+    
+    private final PollingPolicy policy;
+    private final InstantSource clock;
+    
+    private PlayerSnapshot last;
+    private Instant boost_until = Instant.MIN;
+    private int idle_polls;
+    
+    public PollScheduler(PollingPolicy policy, InstantSource clock) {
+        this.policy = policy;
+        this.clock = clock;
+    }
+    
+    public synchronized Duration nextDelay(PlayerSnapshot snapshot) {
+        var now = clock.instant();
+        
+        if (last != null && changed(last, snapshot) && !reachedEnd(last, now)) {
+            boost_until = now.plus(policy.boost());
+            idle_polls = 0;
+        }
+        last = snapshot;
+        
+        var boosted = now.isBefore(boost_until);
+        
+        if (!snapshot.playing())
+            return boosted ? policy.minimumInterval() : idleDelay();
+        idle_polls = 0;
+        
+        var delay = boosted ? policy.minimumInterval() : policy.interval();
+        
+        var until_end = Duration.ofMillis(snapshot.remainingMillis())
+                .minus(Duration.between(snapshot.timestamp(), now))
+                .plus(policy.endGrace());
+        if (until_end.compareTo(delay) < 0)
+            delay = max(until_end, policy.minimumInterval());
+        
+        return delay;
+    }
+    
+    /**
+     * the delay after a poll that failed, which backs off like an idle player so a Music that keeps failing isn't
+     * asked again at the full rate
+     */
+    public synchronized Duration failedDelay() {
+        return idleDelay();
+    }
+    
+    private Duration idleDelay() {
+        var delay = policy.interval().toMillis() * Math.pow(policy.backoff(), idle_polls);
+        if (delay < policy.maximumIdleInterval().toMillis())
+            idle_polls++;
+        return min(Duration.ofMillis((long) delay), policy.maximumIdleInterval());
+    }
+    
+    private static boolean changed(PlayerSnapshot previous, PlayerSnapshot current) {
+        var previous_track = previous.track();
+        var current_track = current.track();
+        return previous.state() != current.state()
+                || (previous_track == null) != (current_track == null)
+                || (previous_track != null && previous_track.persistentId() != current_track.persistentId());
+    }
+    
+    private boolean reachedEnd(PlayerSnapshot previous, Instant now) {
+        if (!previous.playing())
+            return false;
+        var elapsed = Duration.between(previous.timestamp(), now);
+        return elapsed.plus(policy.endGrace()).plus(policy.minimumInterval()).toMillis() >= previous.remainingMillis();
+    }
+    
+    private static Duration min(Duration a, Duration b) {
+        return (a.compareTo(b) <= 0) ? a : b;
+    }
+    
+    private static Duration max(Duration a, Duration b) {
+        return (a.compareTo(b) >= 0) ? a : b;
+    }
+}
@@ -0,0 +1,51 @@
+package canaryprism.presence.apple.music;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * @param interval how often to poll while a track plays with nothing else going on
+ * @param minimumInterval the fastest polling ever gets, used right after the user changed something
+ * @param endGrace how long after the predicted end of a track to check for the next one
+ * @param boost how long to keep polling at {@code minimumInterval} after a change the end of a track didn't explain
+ * @param maximumIdleInterval the slowest polling gets while paused or stopped
+ * @param backoff what the interval is multiplied by on each poll that finds the player idle
+ */
+public record PollingPolicy(
+        Duration interval,
+        Duration minimumInterval,
+        Duration endGrace,
+        Duration boost,
+        Duration maximumIdleInterval,
+        double backoff
+) {
+    
+    public PollingPolicy {
+        if (minimumInterval.compareTo(interval) > 0)
+            throw new IllegalArgumentException("minimum interval " + minimumInterval + " is longer than interval " + interval);
+        if (backoff < 1)
+            throw new IllegalArgumentException("backoff must be at least 1, got " + backoff);
+    }
+    
+    public enum Preset {
+        RESPONSIVE(new PollingPolicy(Duration.ofSeconds(2), Duration.ofMillis(500), Duration.ofMillis(250), Duration.ofSeconds(15), Duration.ofSeconds(30), 1.5)),
+        BALANCED(new PollingPolicy(Duration.ofSeconds(5), Duration.ofSeconds(1), Duration.ofMillis(500), Duration.ofSeconds(10), Duration.ofMinutes(1), 2)),
+        EFFICIENT(new PollingPolicy(Duration.ofSeconds(10), Duration.ofSeconds(2), Duration.ofSeconds(1), Duration.ofSeconds(5), Duration.ofMinutes(2), 2));
+        
+        public static final Preset DEFAULT = BALANCED;
+        
+        private final PollingPolicy policy;
+        
+        Preset(PollingPolicy policy) {
+            this.policy = policy;
+        }
+        
+        public PollingPolicy policy() {
+            return policy;
+        }
+        
+        public static Preset parse(String name) {
+            return valueOf(name.strip().toUpperCase(Locale.ROOT));
+        }
+    }
+}
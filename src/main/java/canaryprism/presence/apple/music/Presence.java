@@ -0,0 +1,31 @@
+package canaryprism.presence.apple.music;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * what the presence shows, kept apart from the sdk's {@link de.jcm.discordgamesdk.activity.Activity} so it can be
+ * compared against what was last sent
+ */
+public record Presence(String details, String state, String largeImage, String largeText, Instant start, Instant end) {
+    
+    /**
+     * @return whether the two would look the same, timestamps drift a little between polls so they only need to
+     * be within {@code tolerance}
+     */
+    public boolean looksLike(Presence other, Duration tolerance) {
+        return Objects.equals(details, other.details)
+                && Objects.equals(state, other.state)
+                && Objects.equals(largeImage, other.largeImage)
+                && Objects.equals(largeText, other.largeText)
+                && close(start, other.start, tolerance)
+                && close(end, other.end, tolerance);
+    }
+    
+    private static boolean close(Instant a, Instant b, Duration tolerance) {
+        if (a == null || b == null)
+            return a == b;
+        return Duration.between(a, b).abs().compareTo(tolerance) <= 0;
+    }
+}
@@ -0,0 +1,222 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * polls the player and keeps the presence in line with what's playing
+ * <p>
+ * {@code speed} is how much faster than real time {@code clock} runs, poll delays are divided by it. it's 1 except
+ * when replaying a recorded session
+ */
+public final class PresenceLoop implements AutoCloseable {
+    
+    private static final Logger log = LoggerFactory.getLogger(PresenceLoop.class);
+    
+    public static final int LENGTH_LIMIT = 128;
+    static final long SEEK_TOLERANCE_MILLIS = 2000;
+    private static final int PREFETCH_LOOK_AHEAD = 3;
+    
+    private final ExecutionLanes lanes;
+    private final CountingPlayerSource player;
+    private final PresenceSink presence_sink;
+    private final ArtworkCache artwork_cache;
+    private final ArtworkPrefetcher prefetcher;
+    private final PollScheduler poll_scheduler;
+    private final double speed;
+    private final Duration dwell;
+    private final String fallback_image;
+    
+    private volatile boolean closed;
+    
+    public PresenceLoop(ExecutionLanes lanes, CountingPlayerSource player, PresenceSink presence_sink, ArtworkCache artwork_cache,
+                        PollingPolicy polling, InstantSource clock, double speed, Duration dwell, String fallback_image) {
+        this.lanes = lanes;
+        this.player = player;
+        this.presence_sink = presence_sink;
+        this.artwork_cache = artwork_cache;
+        this.poll_scheduler = new PollScheduler(polling, clock);
+        this.speed = speed;
+        this.dwell = dwell;
+        this.fallback_image = fallback_image;
+        
+        this.prefetcher = new ArtworkPrefetcher(player, artwork_cache, PREFETCH_LOOK_AHEAD);
+        
+        Metrics.get().registerGauge("prefetch hits", prefetcher::hits);
+        Metrics.get().registerGauge("prefetch late", prefetcher::late);
+        Metrics.get().registerGauge("prefetch misses", prefetcher::misses);
+    }
+    
+    public void start() {
+        lanes.polling().execute(this::poll);
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        prefetcher.close();
+    }
+    
+    private final AtomicBoolean refresh_pending = new AtomicBoolean();
+    
+    // artwork finishing for a track several times over only needs one refresh
+    private void requestRefresh() {
+        if (refresh_pending.compareAndSet(false, true)) {
+            lanes.polling().execute(() -> {
+                refresh_pending.set(false);
+                checkTrack(true);
+            });
+        }
+    }
+    
+    private void poll() {
+        if (closed)
+            return;
+        Duration delay = null;
+        try {
+            delay = poll_scheduler.nextDelay(checkTrack(false));
+        } catch (Exception e) {
+            log.error("exception while checking track: ", e);
+        } finally {
+            if (delay == null)
+                delay = poll_scheduler.failedDelay();
+            log.trace("next poll in {}", delay);
+            lanes.polling().schedule(this::poll, (long) (delay.toMillis() / speed), TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private volatile int last_track_id;
+    private volatile boolean status_active = false;
+    private volatile Instant presence_start;
+    private volatile int presence_track_id;
+    private volatile long track_changed_nanos;
+    private volatile CompletableFuture<String> presence_future;
+    private volatile int retried_track_id;
+    
+    private PlayerSnapshot checkTrack(boolean force) {
+        // counted here rather than from the player's totals, artwork reads and look ahead go through the same
+        // player from other lanes while a poll runs
+        var poll_calls = 0;
+        
+        var snapshot = player.snapshot();
+        poll_calls++;
+        if (snapshot.playing()) {
+            var track = snapshot.track();
+            if (!status_active || track.id() != last_track_id || force || seeked(snapshot)) {
+                if (!status_active || track.id() != last_track_id)
+                    track_changed_nanos = System.nanoTime();
+                last_track_id = track.id();
+                
+                updatePresence(snapshot);
+                status_active = true;
+            }
+        } else if (status_active) {
+            status_active = false;
+            
+            presence_sink.clear();
+            
+            log.info("presence cleared");
+        }
+        
+        Metrics.get().increment(Metrics.Counter.POLLS);
+        Metrics.get().add(Metrics.Counter.IPC_CALLS, poll_calls);
+        log.trace("poll made {} calls to Music", poll_calls);
+        
+        return snapshot;
+    }
+    
+    // a seek or the same track repeating moves where the track started without changing the track
+    private boolean seeked(PlayerSnapshot snapshot) {
+        var start = presence_start;
+        return start != null && Math.abs(Duration.between(start, startOf(snapshot)).toMillis()) > SEEK_TOLERANCE_MILLIS;
+    }
+    
+    private static Instant startOf(PlayerSnapshot snapshot) {
+        return snapshot.timestamp().minus(Duration.ofMillis(((long) (snapshot.position() * 1000))));
+    }
+    
+    private void updatePresence(PlayerSnapshot snapshot) {
+        var track = snapshot.track();
+        
+        var now = snapshot.timestamp();
+        
+        presence_start = startOf(snapshot);
+        
+        var remaining = snapshot.remainingMillis();
+        
+        var end = now.plus(Duration.ofMillis(remaining));
+        
+        
+        var state = Optional.ofNullable(track.artist())
+                .filter((e) -> !e.isEmpty())
+                .map((e) -> e.substring(0, Math.min(e.length(), LENGTH_LIMIT)))
+                .orElse(null);
+        
+        // uploads for a track are held off for the dwell time, a track skipped before then is cancelled below
+        // when the next one starts and never gets uploaded
+        // a failed load is dropped from the cache so getting it again starts another. that's done once for the
+        // refresh the failure triggers, after that the track keeps the fallback instead of retrying every refresh
+        var current = presence_future;
+        var failed = track.id() == presence_track_id && current != null && current.isCompletedExceptionally();
+        CompletableFuture<String> future_image_url;
+        if (failed && retried_track_id == track.id()) {
+            future_image_url = current;
+        } else {
+            future_image_url = artwork_cache.get(new StoredTrack(track.persistentId()), dwell);
+            if (failed) {
+                retried_track_id = track.id();
+                presence_future = future_image_url;
+            }
+        }
+        
+        var image_url = future_image_url.isCompletedExceptionally() ? fallback_image : future_image_url.getNow(fallback_image);
+        
+        var large_text = Optional.ofNullable(track.album())
+                .filter((e) -> !e.isEmpty())
+                .map((e) -> e.substring(0, Math.min(e.length(), LENGTH_LIMIT)))
+                .orElse(null);
+        
+        log.info("presence image: {}", image_url);
+        
+        if (track.id() != presence_track_id) {
+            var previous = presence_future;
+            if (previous != null && !previous.isDone())
+                previous.cancel(false);
+            presence_future = future_image_url;
+            retried_track_id = 0;
+            
+            presence_track_id = track.id();
+            prefetcher.trackStarted(track.persistentId(), future_image_url.isDone());
+        }
+        
+        // registered after presence_track_id is current so a load finishing right away still refreshes, failed
+        // loads included so they get their retry
+        if (!future_image_url.isDone()) {
+            var id = track.id();
+            future_image_url.whenComplete((_, _) -> {
+                if (presence_track_id == id)
+                    requestRefresh();
+            });
+        }
+        
+        log.info("presence updated: {} - {}", track.artist(), track.name());
+        
+        // forced re-checks mostly produce the same presence, the queue drops those and holds the rest to
+        // discord's rate limit on the callback lane
+        presence_sink.update(new Presence(track.name(), state, image_url, large_text, presence_start, end));
+        
+        var changed = track_changed_nanos;
+        if (changed != 0 && future_image_url.isDone()) {
+            track_changed_nanos = 0;
+            Metrics.get().recordSince(Metrics.Stage.TRACK_TO_PRESENCE, changed);
+        }
+    }
+}
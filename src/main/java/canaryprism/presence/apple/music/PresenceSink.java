@@ -0,0 +1,11 @@
+package canaryprism.presence.apple.music;
+
+/**
+ * where presence updates go
+ */
+public interface PresenceSink {
+    
+    void update(Presence presence);
+    
+    void clear();
+}
@@ -0,0 +1,168 @@
+package canaryprism.presence.apple.music;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * disk tier of optimised artwork keyed by the digest of the raw artwork, so an upload that failed or a url that
+ * has to be regenerated doesn't redo the processing
+ * <p>
+ * files are named {@code <digest>.<variant>}, where the variant names the settings the artwork was processed
+ * with. changing them misses every file written before, which is left to age out of the index
+ * <p>
+ * the index is weighed by file size and evicts past {@code maximum_bytes}. a file's modification time is bumped
+ * on every hit so the least recently used files are also the ones dropped first when the index is rebuilt
+ */
+public final class ProcessedImageCache {
+    
+    private static final Logger log = LoggerFactory.getLogger(ProcessedImageCache.class);
+    
+    private static final Pattern VARIANT = Pattern.compile("[a-z0-9-]+");
+    // files from before variants were added have none, they're indexed only so they get evicted
+    private static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]{64}(\\.[a-z0-9-]+)?");
+    
+    private final Path directory;
+    private final String variant;
+    
+    private final Cache<String, Integer> index;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    
+    /**
+     * @param variant names the blur and output settings images are processed with, lowercase letters, digits and
+     *                dashes only
+     */
+    public ProcessedImageCache(Path directory, String variant, long maximum_bytes) {
+        if (!VARIANT.matcher(variant).matches())
+            throw new IllegalArgumentException("invalid variant '" + variant + "'");
+        this.directory = directory;
+        this.variant = variant;
+        this.index = Caffeine.newBuilder()
+                .maximumWeight(maximum_bytes)
+                .<String, Integer>weigher((_, size) -> size)
+                .<String, Integer>removalListener((file_name, _, cause) -> {
+                    if (file_name != null && cause.wasEvicted())
+                        delete(file_name);
+                })
+                .build();
+    }
+    
+    /**
+     * indexes the files already on disk, most recently used last so they're the ones that survive eviction
+     */
+    public void load() {
+        try {
+            Files.createDirectories(directory);
+            try (var files = Files.list(directory)) {
+                // temporary files left behind by writes that never finished
+                for (var path : files.filter((path) -> path.getFileName().toString().endsWith(".tmp")).toList())
+                    Files.deleteIfExists(path);
+            }
+            try (var files = Files.list(directory)) {
+                var entries = files
+                        .filter((path) -> FILE_NAME.matcher(path.getFileName().toString()).matches())
+                        .map(ProcessedImageCache::entry)
+                        .flatMap(Optional::stream)
+                        .sorted(Comparator.comparing(Entry::lastUsed))
+                        .toList();
+                for (var entry : entries)
+                    index.put(entry.path().getFileName().toString(), entry.size());
+                log.info("indexed {} processed images", entries.size());
+            }
+        } catch (IOException e) {
+            log.warn("failed to index processed images in {}: ", directory, e);
+        }
+    }
+    
+    public Optional<byte[]> get(String digest) {
+        var file_name = fileName(digest);
+        if (index.getIfPresent(file_name) == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        var path = directory.resolve(file_name);
+        try {
+            var data = Files.readAllBytes(path);
+            Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
+            hits.increment();
+            return Optional.of(data);
+        } catch (IOException e) {
+            if (!(e instanceof NoSuchFileException))
+                log.warn("failed to read processed image {}: ", digest, e);
+            index.invalidate(file_name);
+            misses.increment();
+            return Optional.empty();
+        }
+    }
+    
+    public void put(String digest, byte[] data) {
+        var file_name = fileName(digest);
+        if (index.getIfPresent(file_name) != null)
+            return;
+        var path = directory.resolve(file_name);
+        try {
+            var temp = Files.createTempFile(directory, file_name, ".tmp");
+            try {
+                Files.write(temp, data);
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            index.put(file_name, data.length);
+        } catch (IOException e) {
+            log.warn("failed to write processed image {}: ", digest, e);
+        }
+    }
+    
+    public CacheStats stats() {
+        return CacheStats.of(hits.sum(), misses.sum(), 0, 0, 0, 0, 0);
+    }
+    
+    public long weightedSize() {
+        return index.policy()
+                .eviction()
+                .map((eviction) -> eviction.weightedSize().orElse(0))
+                .orElse(0L);
+    }
+    
+    private String fileName(String digest) {
+        return digest + "." + variant;
+    }
+    
+    private void delete(String file_name) {
+        try {
+            Files.deleteIfExists(directory.resolve(file_name));
+        } catch (IOException e) {
+            log.warn("failed to delete processed image {}: ", file_name, e);
+        }
+    }
+    
+    private static Optional<Entry> entry(Path path) {
+        try {
+            var size = Files.size(path);
+            if (size > Integer.MAX_VALUE)
+                return Optional.empty();
+            return Optional.of(new Entry(path, (int) size, Files.getLastModifiedTime(path)));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+    
+    private record Entry(Path path, int size, FileTime lastUsed) {}
+}
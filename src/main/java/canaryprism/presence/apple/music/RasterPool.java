@@ -0,0 +1,58 @@
+package canaryprism.presence.apple.music;
+
+import java.util.ArrayDeque;
+
+/**
+ * recycles the large {@code int[]} rasters artwork processing goes through so steady state processing doesn't
+ * keep handing the gc multi megabyte arrays
+ * <p>
+ * arrays come back with whatever the last user left in them and may be longer than asked for
+ */
+public final class RasterPool {
+    
+    // lengths are rounded up to this many ints so slightly different sizes can share arrays
+    private static final int GRANULE = 64 * 1024;
+    
+    private static final RasterPool SHARED = new RasterPool(64L * 1024 * 1024);
+    
+    private final long capacity;
+    private final ArrayDeque<int[]> free = new ArrayDeque<>();
+    private long retained;
+    
+    /**
+     * @param capacity the most bytes of free arrays kept around
+     */
+    public RasterPool(long capacity) {
+        this.capacity = capacity;
+    }
+    
+    public static RasterPool shared() {
+        return SHARED;
+    }
+    
+    public int[] acquire(int length) {
+        synchronized (this) {
+            int[] best = null;
+            for (var array : free)
+                if (array.length >= length && (best == null || array.length < best.length))
+                    best = array;
+            if (best != null) {
+                free.removeFirstOccurrence(best);
+                retained -= best.length * 4L;
+                return best;
+            }
+        }
+        var rounded = Math.ceilDiv((long) length, GRANULE) * GRANULE;
+        return new int[(int) Math.min(rounded, Integer.MAX_VALUE - 8)];
+    }
+    
+    public synchronized void release(int[] array) {
+        var bytes = array.length * 4L;
+        if (bytes > capacity)
+            return;
+        while (retained + bytes > capacity)
+            retained -= free.pollFirst().length * 4L;
+        free.addLast(array);
+        retained += bytes;
+    }
+}
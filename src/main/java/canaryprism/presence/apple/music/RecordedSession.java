@@ -0,0 +1,127 @@
+package canaryprism.presence.apple.music;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * a listening session recorded by {@link SessionRecorder}, a directory holding {@value #EVENTS} with one json
+ * event per line and the raw artwork of every track played under {@value #ARTWORK}
+ * <p>
+ * an event is only written when the player does something the last one doesn't predict, so the player's state at
+ * any point is the latest event before it with the position carried forward while playing
+ */
+public record RecordedSession(Path directory, List<Event> events) {
+    
+    public static final String EVENTS = "session.jsonl";
+    public static final String ARTWORK = "artwork";
+    
+    public RecordedSession {
+        events = List.copyOf(events);
+    }
+    
+    /**
+     * @param at milliseconds since the recording started
+     * @param upcoming what the player said would play next, only read when the track changes and empty otherwise
+     */
+    public record Event(long at, PlayerSnapshot.State state, double position, PlayerSnapshot.TrackInfo track, List<Long> upcoming) {
+        
+        public Event {
+            upcoming = List.copyOf(upcoming);
+        }
+        
+        JSONObject toJson() {
+            var json = new JSONObject()
+                    .put("at", at)
+                    .put("state", state.name())
+                    .put("position", position);
+            if (track != null) {
+                json.put("track", new JSONObject()
+                        .put("id", track.id())
+                        .put("persistent_id", TrackContainer.formatId(track.persistentId()))
+                        .put("name", track.name())
+                        .put("artist", track.artist())
+                        .put("album", track.album())
+                        .put("finish", track.finish()));
+            }
+            if (!upcoming.isEmpty())
+                json.put("upcoming", new JSONArray(upcoming.stream().map(TrackContainer::formatId).toList()));
+            return json;
+        }
+        
+        static Event fromJson(JSONObject json) {
+            PlayerSnapshot.TrackInfo track = null;
+            var track_json = json.optJSONObject("track");
+            if (track_json != null) {
+                track = new PlayerSnapshot.TrackInfo(
+                        track_json.getInt("id"),
+                        TrackContainer.parseId(track_json.getString("persistent_id")),
+                        track_json.optString("name", null),
+                        track_json.optString("artist", null),
+                        track_json.optString("album", null),
+                        track_json.getDouble("finish"));
+            }
+            var upcoming = new ArrayList<Long>();
+            var upcoming_json = json.optJSONArray("upcoming");
+            if (upcoming_json != null) {
+                for (int i = 0; i < upcoming_json.length(); i++)
+                    upcoming.add(TrackContainer.parseId(upcoming_json.getString(i)));
+            }
+            return new Event(json.getLong("at"), PlayerSnapshot.State.valueOf(json.getString("state")),
+                    json.getDouble("position"), track, upcoming);
+        }
+    }
+    
+    public static RecordedSession read(Path directory) throws IOException {
+        var events = new ArrayList<Event>();
+        try (var lines = Files.lines(directory.resolve(EVENTS), StandardCharsets.UTF_8)) {
+            for (var line : (Iterable<String>) lines::iterator) {
+                if (line.isBlank())
+                    continue;
+                try {
+                    events.add(Event.fromJson(new JSONObject(line)));
+                } catch (JSONException | IllegalArgumentException e) {
+                    throw new IOException("invalid event '" + line + "' in " + directory, e);
+                }
+            }
+        }
+        return new RecordedSession(directory, events);
+    }
+    
+    static void append(BufferedWriter writer, Event event) throws IOException {
+        writer.write(event.toJson().toString());
+        writer.newLine();
+        writer.flush();
+    }
+    
+    public Optional<byte[]> artwork(long persistent_id) {
+        var path = artworkPath(directory, persistent_id);
+        if (Files.notExists(path))
+            return Optional.empty();
+        try {
+            return Optional.of(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new PlayerSourceException("failed to read recorded artwork " + path, e);
+        }
+    }
+    
+    static Path artworkPath(Path directory, long persistent_id) {
+        return directory.resolve(ARTWORK).resolve(TrackContainer.formatId(persistent_id));
+    }
+    
+    /**
+     * @return how long the session lasted, up to its last event
+     */
+    public long lengthMillis() {
+        return events.isEmpty() ? 0 : events.getLast().at();
+    }
+}
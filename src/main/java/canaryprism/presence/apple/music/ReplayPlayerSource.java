@@ -0,0 +1,114 @@
+package canaryprism.presence.apple.music;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * plays back a {@link RecordedSession} in place of Music, on a virtual clock running {@code speed} times faster
+ * than real time from when this was created. the player is stopped once the session is over
+ * <p>
+ * the virtual clock is real time sped up rather than a simulated one, it only stands still if the real clock it's
+ * given does
+ */
+public final class ReplayPlayerSource implements PlayerSource, InstantSource {
+    
+    private final RecordedSession session;
+    private final double speed;
+    private final InstantSource clock;
+    private final Instant epoch;
+    
+    public ReplayPlayerSource(RecordedSession session, double speed) {
+        this(session, speed, InstantSource.system());
+    }
+    
+    /**
+     * @param clock the real time the virtual clock runs ahead of
+     */
+    ReplayPlayerSource(RecordedSession session, double speed, InstantSource clock) {
+        if (speed <= 0)
+            throw new IllegalArgumentException("speed must be positive, got " + speed);
+        this.session = session;
+        this.speed = speed;
+        this.clock = clock;
+        this.epoch = clock.instant();
+    }
+    
+    @Override
+    public Instant instant() {
+        return epoch.plusMillis(elapsedMillis());
+    }
+    
+    /**
+     * @return virtual milliseconds since the session started
+     */
+    public long elapsedMillis() {
+        return (long) (Duration.between(epoch, clock.instant()).toNanos() * speed / 1_000_000);
+    }
+    
+    @Override
+    public PlayerSnapshot snapshot() {
+        var at = elapsedMillis();
+        var timestamp = epoch.plusMillis(at);
+        var index = eventAt(at);
+        if (index < 0 || at > session.lengthMillis())
+            return new PlayerSnapshot(timestamp, PlayerSnapshot.State.STOPPED, 0, null);
+        
+        var event = session.events().get(index);
+        var position = (event.state() == PlayerSnapshot.State.PLAYING)
+                ? event.position() + (at - event.at()) / 1000.0
+                : event.position();
+        return new PlayerSnapshot(timestamp, event.state(), position, event.track());
+    }
+    
+    @Override
+    public Optional<byte[]> artwork(long persistent_id) {
+        return session.artwork(persistent_id);
+    }
+    
+    @Override
+    public List<Long> upcoming(int count) {
+        var index = eventAt(elapsedMillis());
+        if (index < 0 || session.events().get(index).track() == null)
+            return List.of();
+        
+        // upcoming tracks were recorded with the event the current track started on
+        var events = session.events();
+        var persistent_id = events.get(index).track().persistentId();
+        while (index > 0 && events.get(index - 1).track() != null
+                && events.get(index - 1).track().persistentId() == persistent_id)
+            index--;
+        var upcoming = events.get(index).upcoming();
+        return upcoming.subList(0, Math.min(count, upcoming.size()));
+    }
+    
+    @Override
+    public List<Long> tracks(String playlist) {
+        return session.events()
+                .stream()
+                .filter((event) -> event.track() != null)
+                .map((event) -> event.track().persistentId())
+                .distinct()
+                .toList();
+    }
+    
+    // the last event at or before the time, -1 if there is none
+    int eventAt(long at) {
+        var events = session.events();
+        int low = 0;
+        int high = events.size() - 1;
+        var result = -1;
+        while (low <= high) {
+            var middle = (low + high) >>> 1;
+            if (events.get(middle).at() <= at) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * records what the player does into a {@link RecordedSession} for replaying later
+ */
+public final class SessionRecorder {
+    
+    private static final Logger log = LoggerFactory.getLogger(SessionRecorder.class);
+    
+    // how far the position can drift from what the last event predicts before it counts as a seek
+    private static final double POSITION_TOLERANCE = 1;
+    private static final int UPCOMING_COUNT = 5;
+    
+    private final PlayerSource player;
+    private final Path directory;
+    private final Duration interval;
+    
+    public SessionRecorder(PlayerSource player, Path directory, Duration interval) {
+        this.player = player;
+        this.directory = directory;
+        this.interval = interval;
+    }
+    
+    /**
+     * polls the player every {@code interval} until {@code length} has passed or the thread is interrupted,
+     * the state at the end is always written so replays know how long the session went on for
+     */
+    public void record(Duration length) throws IOException {
+        Files.createDirectories(directory.resolve(RecordedSession.ARTWORK));
+        
+        var artworks = new HashSet<Long>();
+        var start = Instant.now();
+        RecordedSession.Event last = null;
+        var events = 0;
+        
+        try (var writer = Files.newBufferedWriter(directory.resolve(RecordedSession.EVENTS), StandardCharsets.UTF_8)) {
+            PlayerSnapshot snapshot = null;
+            while (true) {
+                try {
+                    snapshot = player.snapshot();
+                } catch (PlayerSourceException e) {
+                    log.warn("failed to read player: ", e);
+                }
+                
+                if (snapshot != null) {
+                    var at = Duration.between(start, snapshot.timestamp()).toMillis();
+                    if (last == null || !predicts(last, snapshot, at)) {
+                        var track_changed = last == null || !Objects.equals(trackId(last.track()), trackId(snapshot.track()));
+                        var upcoming = (track_changed && snapshot.track() != null) ? player.upcoming(UPCOMING_COUNT) : List.<Long>of();
+                        last = new RecordedSession.Event(at, snapshot.state(), snapshot.position(), snapshot.track(), upcoming);
+                        RecordedSession.append(writer, last);
+                        events++;
+                        
+                        if (snapshot.track() != null && artworks.add(snapshot.track().persistentId()))
+                            saveArtwork(snapshot.track().persistentId());
+                    }
+                }
+                
+                if (Duration.between(start, Instant.now()).compareTo(length) >= 0)
+                    break;
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            
+            if (snapshot != null && last != null) {
+                var at = Duration.between(start, Instant.now()).toMillis();
+                var position = snapshot.playing() ? last.position() + (at - last.at()) / 1000.0 : last.position();
+                RecordedSession.append(writer, new RecordedSession.Event(at, last.state(), position, last.track(), List.of()));
+                events++;
+            }
+        }
+        
+        log.info("recorded {} events of {} tracks to {}", events, artworks.size(), directory);
+    }
+    
+    private void saveArtwork(long persistent_id) throws IOException {
+        try {
+            var artwork = player.artwork(persistent_id);
+            if (artwork.isPresent())
+                Files.write(RecordedSession.artworkPath(directory, persistent_id), artwork.get());
+        } catch (PlayerSourceException e) {
+            log.warn("failed to read artwork of {}: ", TrackContainer.formatId(persistent_id), e);
+        }
+    }
+    
+    static boolean predicts(RecordedSession.Event event, PlayerSnapshot snapshot, long at) {
+        if (event.state() != snapshot.state() || !Objects.equals(trackId(event.track()), trackId(snapshot.track())))
+            return false;
+        var expected = (event.state() == PlayerSnapshot.State.PLAYING)
+                ? event.position() + (at - event.at()) / 1000.0
+                : event.position();
+        return Math.abs(expected - snapshot.position()) <= POSITION_TOLERANCE;
+    }
+    
+    private static Long trackId(PlayerSnapshot.TrackInfo track) {
+        return (track == null) ? null : track.persistentId();
+    }
+}
@@ -0,0 +1,255 @@
+package canaryprism.presence.apple.music;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * runs the presence loop against a {@link RecordedSession} with a fake discord and the given image host, starting
+ * from empty caches every time
+ * <p>
+ * the session is replayed {@code speed} times faster than it was recorded. processing and uploads still take real
+ * time, so at higher speeds they make up a bigger part of every latency in the report
+ * <p>
+ * replays aren't deterministic. the session runs on the wall clock sped up, not on simulated time, so polls,
+ * processing and uploads race it, and replaying the same session twice can report slightly different numbers.
+ * compare reports over several runs rather than one
+ */
+public final class SessionReplay {
+    
+    private static final Logger log = LoggerFactory.getLogger(SessionReplay.class);
+    
+    private static final String FALLBACK_IMAGE = "https://replay.invalid/fallback.png";
+    
+    private final RecordedSession session;
+    private final double speed;
+    private final ArtworkProcessor processor;
+    private final ImageHost host;
+    private final PollingPolicy polling;
+    private final Duration dwell;
+    private final double presence_rate;
+    private final int presence_burst;
+    
+    /**
+     * @param presence_rate activity updates allowed per minute of the session
+     */
+    public SessionReplay(RecordedSession session, double speed, ArtworkProcessor processor, ImageHost host,
+                         PollingPolicy polling, Duration dwell, double presence_rate, int presence_burst) {
+        this.session = session;
+        this.speed = speed;
+        this.processor = processor;
+        this.host = host;
+        this.polling = polling;
+        this.dwell = dwell;
+        this.presence_rate = presence_rate;
+        this.presence_burst = presence_burst;
+    }
+    
+    /**
+     * @param presenceLatency virtual time from a track starting to it being shown
+     * @param artworkLatency virtual time from a track starting to it being shown with its own artwork
+     * @param unshown track changes the presence never caught up with before the next one
+     */
+    public record Report(long uploads, long ipcCalls, long presenceUpdates, int trackChanges, int unshown,
+                         LatencyHistogram presenceLatency, LatencyHistogram artworkLatency) {
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, """
+                    uploads:          %d
+                    ipc calls:        %d
+                    presence updates: %d
+                    track changes:    %d, %d never shown
+                    track to presence p50=%.0fms p99=%.0fms
+                    track to artwork  p50=%.0fms p99=%.0fms""",
+                    uploads, ipcCalls, presenceUpdates, trackChanges, unshown,
+                    presenceLatency.percentile(0.5) / 1e6, presenceLatency.percentile(0.99) / 1e6,
+                    artworkLatency.percentile(0.5) / 1e6, artworkLatency.percentile(0.99) / 1e6);
+        }
+    }
+    
+    public Report run() throws IOException, InterruptedException {
+        var directory = Files.createTempDirectory("replay");
+        var uploader = new CountingImageHost(host);
+        try (var lanes = new ExecutionLanes()) {
+            var source = new ReplayPlayerSource(session, speed);
+            var player = new CountingPlayerSource(source);
+            
+            var cache = new ArtworkCache(player, processor, uploader, new ImageCacheStore(directory.resolve("image_cache")),
+                    new ProcessedImageCache(directory.resolve("processed"), "replay", Long.MAX_VALUE), lanes.io(), lanes.cpu());
+            cache.load(directory.resolve("images"));
+            
+            var sink = new RecordingSink(source);
+            var queue = new ActivityQueue(sink, lanes.callbacks(), new TokenBucket(presence_rate / 60 * speed, presence_burst),
+                    Duration.ofMillis(PresenceLoop.SEEK_TOLERANCE_MILLIS));
+            
+            log.info("replaying {} events over {} at {}x", session.events().size(), Duration.ofMillis(session.lengthMillis()), speed);
+            
+            try (var loop = new PresenceLoop(lanes, player, queue, cache, polling, source, speed,
+                    Duration.ofMillis((long) (dwell.toMillis() / speed)), FALLBACK_IMAGE)) {
+                loop.start();
+                TimeUnit.MILLISECONDS.sleep((long) (session.lengthMillis() / speed));
+            }
+            
+            return report(uploader.uploads(), player.calls(), sink);
+        } finally {
+            delete(directory);
+        }
+    }
+    
+    private Report report(long uploads, long calls, RecordingSink sink) {
+        var presence_latency = new LatencyHistogram();
+        var artwork_latency = new LatencyHistogram();
+        var changes = 0;
+        var unshown = 0;
+        
+        var sent = sink.sent();
+        var events = session.events();
+        PlayerSnapshot.TrackInfo previous = null;
+        for (int i = 0; i < events.size(); i++) {
+            var event = events.get(i);
+            var track = (event.state() == PlayerSnapshot.State.PLAYING) ? event.track() : null;
+            if (track != null && (previous == null || previous.persistentId() != track.persistentId())) {
+                changes++;
+                var until = nextChange(i);
+                var shown = false;
+                var with_artwork = false;
+                for (var presence : sent) {
+                    if (presence.at() < event.at() || presence.at() >= until)
+                        continue;
+                    if (presence.presence() == null || !Objects.equals(track.name(), presence.presence().details()))
+                        continue;
+                    if (!shown) {
+                        shown = true;
+                        presence_latency.record(TimeUnit.MILLISECONDS.toNanos(presence.at() - event.at()));
+                    }
+                    if (!FALLBACK_IMAGE.equals(presence.presence().largeImage())) {
+                        with_artwork = true;
+                        artwork_latency.record(TimeUnit.MILLISECONDS.toNanos(presence.at() - event.at()));
+                        break;
+                    }
+                }
+                if (!shown)
+                    unshown++;
+                if (!with_artwork)
+                    log.debug("{} was never shown with its artwork", track.name());
+            }
+            previous = track;
+        }
+        
+        var updates = sent.stream().filter((presence) -> presence.presence() != null).count();
+        return new Report(uploads, calls, updates, changes, unshown, presence_latency, artwork_latency);
+    }
+    
+    // when whatever the event at the index started stops playing
+    private long nextChange(int index) {
+        var events = session.events();
+        var track = events.get(index).track();
+        for (int i = index + 1; i < events.size(); i++) {
+            var event = events.get(i);
+            if (event.state() != PlayerSnapshot.State.PLAYING || event.track() == null
+                    || event.track().persistentId() != track.persistentId())
+                return event.at();
+        }
+        return Long.MAX_VALUE;
+    }
+    
+    /**
+     * a host that answers every upload straight away with a made up url, so replays don't upload anywhere
+     */
+    public static ImageHost stubHost() {
+        return new StubHost();
+    }
+    
+    private static void delete(Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (var path : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(path);
+        }
+    }
+    
+    /**
+     * stands in for discord, remembering everything sent and when in the session's time
+     */
+    private static final class RecordingSink implements PresenceSink {
+        
+        private final ReplayPlayerSource clock;
+        private final List<Sent> sent = new ArrayList<>();
+        
+        RecordingSink(ReplayPlayerSource clock) {
+            this.clock = clock;
+        }
+        
+        @Override
+        public synchronized void update(Presence presence) {
+            sent.add(new Sent(clock.elapsedMillis(), presence));
+        }
+        
+        @Override
+        public synchronized void clear() {
+            sent.add(new Sent(clock.elapsedMillis(), null));
+        }
+        
+        synchronized List<Sent> sent() {
+            return List.copyOf(sent);
+        }
+    }
+    
+    // a null presence is a clear
+    private record Sent(long at, Presence presence) {}
+    
+    private static final class StubHost implements ImageHost {
+        
+        private final AtomicLong uploads = new AtomicLong();
+        
+        @Override
+        public String name() {
+            return "replay";
+        }
+        
+        @Override
+        public CompletableFuture<String> uploadAsync(byte[] data, String name) {
+            return CompletableFuture.completedFuture("https://replay.invalid/" + uploads.incrementAndGet() + ".jpg");
+        }
+    }
+    
+    /**
+     * counts the uploads the replay makes to whichever host it was given
+     */
+    private static final class CountingImageHost implements ImageHost {
+        
+        private final ImageHost host;
+        private final AtomicLong uploads = new AtomicLong();
+        
+        CountingImageHost(ImageHost host) {
+            this.host = host;
+        }
+        
+        @Override
+        public String name() {
+            return host.name();
+        }
+        
+        @Override
+        public CompletableFuture<String> uploadAsync(byte[] data, String name) {
+            uploads.incrementAndGet();
+            return host.uploadAsync(data, name);
+        }
+        
+        long uploads() {
+            return uploads.get();
+        }
+    }
+}
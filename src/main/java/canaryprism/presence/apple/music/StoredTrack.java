@@ -1,17 +1,14 @@
 package canaryprism.presence.apple.music;
 
-import java.util.Objects;
-
-public record StoredTrack(String id) implements TrackContainer {
+public record StoredTrack(long id) implements TrackContainer {
     
     @Override
-    public boolean equals(Object o) {
-        return (o instanceof TrackContainer container)
-                && Objects.equals(this.getTrackId(), container.getTrackId());
+    public long getTrackId() {
+        return id;
     }
     
     @Override
-    public int hashCode() {
-        return Objects.hashCode(this.getTrackId());
+    public String toString() {
+        return TrackContainer.formatId(id);
     }
 }
@@ -0,0 +1,69 @@
+package canaryprism.presence.apple.music;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * token bucket rate limiter, holds up to {@code burst} permits and refills at {@code permits_per_second}
+ */
+public final class TokenBucket {
+    
+    private final double permits_per_nano;
+    private final double burst;
+    private final LongSupplier nano_time;
+    
+    private double tokens;
+    private long last_refill;
+    
+    public TokenBucket(double permits_per_second, double burst) {
+        this(permits_per_second, burst, System::nanoTime);
+    }
+    
+    public TokenBucket(double permits_per_second, double burst, LongSupplier nano_time) {
+        if (permits_per_second <= 0)
+            throw new IllegalArgumentException("rate must be positive, got " + permits_per_second);
+        if (burst < 1)
+            throw new IllegalArgumentException("burst must be at least 1, got " + burst);
+        this.permits_per_nano = permits_per_second / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.nano_time = nano_time;
+        this.tokens = burst;
+        this.last_refill = nano_time.getAsLong();
+    }
+    
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1)
+            return false;
+        tokens--;
+        return true;
+    }
+    
+    /**
+     * takes a permit, going into debt if there isn't one
+     *
+     * @return how many nanoseconds to wait before acting on the permit
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens--;
+        return (tokens >= 0) ? 0 : (long) Math.ceil(-tokens / permits_per_nano);
+    }
+    
+    public void acquire() throws InterruptedException {
+        var wait = reserve();
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+    
+    public synchronized long nanosUntilAvailable() {
+        refill();
+        return (tokens >= 1) ? 0 : (long) Math.ceil((1 - tokens) / permits_per_nano);
+    }
+    
+    private void refill() {
+        var now = nano_time.getAsLong();
+        tokens = Math.min(burst, tokens + (now - last_refill) * permits_per_nano);
+        last_refill = now;
+    }
+}
@@ -1,11 +1,20 @@
 package canaryprism.presence.apple.music;
 
-public sealed interface TrackContainer permits RealTrack, StoredTrack {
+import java.util.HexFormat;
+
+/**
+ * a track identified by its Music persistent ID, the 16 hex digit ID is kept as the 64-bit number it encodes so
+ * keys hash and compare without touching Music or allocating
+ */
+public sealed interface TrackContainer permits StoredTrack {
+    
+    long getTrackId();
+    
+    static long parseId(String id) {
+        return Long.parseUnsignedLong(id.strip(), 16);
+    }
     
-    default String getTrackId() {
-        return switch (this) {
-            case RealTrack(var track) -> String.valueOf(track.getPersistentId());
-            case StoredTrack(var id) -> id;
-        };
+    static String formatId(long id) {
+        return HexFormat.of().withUpperCase().toHexDigits(id);
     }
 }
@@ -0,0 +1,73 @@
+package canaryprism.presence.apple.music;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * the passes of {@link CompositeKernel} a whole vector of pixels at a time, with the same fixed point arithmetic as
+ * the scalar loops so both give identical pixels
+ * <p>
+ * only loaded once {@code jdk.incubator.vector} is known to be in the module graph
+ */
+final class VectorRows implements CompositeKernel.Rows {
+    
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    
+    private VectorRows() {}
+    
+    /**
+     * @return null if vectors are too narrow to be worth it on this cpu
+     */
+    static CompositeKernel.Rows create() {
+        return (SPECIES.length() < 4) ? null : new VectorRows();
+    }
+    
+    @Override
+    public void blendRows(int[] source, int a, int b, int weight, int width, int[] destination) {
+        if (weight == 0) {
+            System.arraycopy(source, a, destination, 0, width);
+            return;
+        }
+        var bound = SPECIES.loopBound(width);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length())
+            blend(IntVector.fromArray(SPECIES, source, a + i), IntVector.fromArray(SPECIES, source, b + i), weight)
+                    .intoArray(destination, i);
+        for (; i < width; i++)
+            destination[i] = CompositeKernel.ScalarRows.blend(source[a + i], source[b + i], weight);
+    }
+    
+    @Override
+    public void sampleRow(int[] row, int[] left, int[] right, int[] weights, int[] destination, int offset, int width) {
+        var bound = SPECIES.loopBound(width);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            var a = IntVector.fromArray(SPECIES, row, 0, left, i);
+            var b = IntVector.fromArray(SPECIES, row, 0, right, i);
+            blend(a, b, IntVector.fromArray(SPECIES, weights, i))
+                    .intoArray(destination, offset + i);
+        }
+        for (; i < width; i++)
+            destination[offset + i] = CompositeKernel.ScalarRows.blend(row[left[i]], row[right[i]], weights[i]);
+    }
+    
+    private static IntVector blend(IntVector a, IntVector b, int weight) {
+        return blend(a, b, IntVector.broadcast(SPECIES, weight));
+    }
+    
+    private static IntVector blend(IntVector a, IntVector b, IntVector weight) {
+        var inverse = IntVector.broadcast(SPECIES, 256).sub(weight);
+        var red_blue = a.and(0xff00ff).mul(inverse)
+                .add(b.and(0xff00ff).mul(weight))
+                .add(0x800080)
+                .lanewise(VectorOperators.LSHR, 8)
+                .and(0xff00ff);
+        var green = a.and(0xff00).mul(inverse)
+                .add(b.and(0xff00).mul(weight))
+                .add(0x8000)
+                .lanewise(VectorOperators.LSHR, 8)
+                .and(0xff00);
+        return red_blue.or(green);
+    }
+}
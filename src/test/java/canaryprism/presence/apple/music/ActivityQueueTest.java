@@ -0,0 +1,133 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ActivityQueueTest {
+    
+    private static final Duration TOLERANCE = Duration.ofMillis(PresenceLoop.SEEK_TOLERANCE_MILLIS);
+    private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+    
+    // what Main configures, 15 updates a minute with a burst of 5
+    private static final double RATE = 15;
+    private static final int BURST = 5;
+    
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    @Test
+    void onlyTheLatestWaitingUpdateIsSent() throws Exception {
+        var sink = new RecordingPresenceSink();
+        var queue = new ActivityQueue(sink, executor, new TokenBucket(RATE / 60, BURST), TOLERANCE);
+        var coalesced = Metrics.get().count(Metrics.Counter.PRESENCE_COALESCED);
+        
+        // holds the executor so the updates pile up behind it
+        var release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        queue.update(presence("track 1", START));
+        queue.update(presence("track 2", START));
+        queue.update(presence("track 3", START));
+        release.countDown();
+        
+        assertNotNull(sink.await((presence) -> presence.details().equals("track 3"), 5_000));
+        settle();
+        assertEquals(List.of("track 3"), sink.updates().stream().map(Presence::details).toList());
+        assertTrue(Metrics.get().count(Metrics.Counter.PRESENCE_COALESCED) - coalesced >= 2);
+    }
+    
+    @Test
+    void updatesThatLookTheSameAreDropped() throws Exception {
+        var sink = new RecordingPresenceSink();
+        var queue = new ActivityQueue(sink, executor, new TokenBucket(RATE / 60, BURST), TOLERANCE);
+        
+        queue.update(presence("track 1", START));
+        settle();
+        // timestamps drifting between polls stay within the tolerance
+        queue.update(presence("track 1", START.plusMillis(500)));
+        settle();
+        assertEquals(1, sink.sent().size());
+        
+        // a seek past the tolerance moves the timestamps, so it's sent
+        queue.update(presence("track 1", START.plusSeconds(30)));
+        settle();
+        assertEquals(2, sink.sent().size());
+        
+        // and so is anything else that's shown
+        queue.update(new Presence("track 1", "another artist", null, "album", START.plusSeconds(30), START.plusSeconds(210)));
+        settle();
+        assertEquals(3, sink.sent().size());
+        
+        // a clear after a clear doesn't change anything either
+        queue.clear();
+        settle();
+        queue.clear();
+        settle();
+        assertEquals(4, sink.sent().size());
+        assertNull(sink.sent().getLast().presence());
+    }
+    
+    @Test
+    void sendsStayUnderTheRateLimit() throws Exception {
+        // a minute of updates every poll, run 20 times faster than real time
+        var speed = 20;
+        var minute = Duration.ofMinutes(1).dividedBy(speed);
+        var sink = new RecordingPresenceSink();
+        var queue = new ActivityQueue(sink, executor, new TokenBucket(RATE / 60 * speed, BURST), TOLERANCE);
+        
+        var start = System.nanoTime();
+        var deadline = start + minute.toNanos();
+        var updates = 0;
+        while (System.nanoTime() < deadline) {
+            queue.update(presence("track " + updates++, START));
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        var submitted = updates;
+        var last = "track " + (submitted - 1);
+        
+        // whatever was held back goes out once there's room, and it's the latest update
+        assertNotNull(sink.await((presence) -> presence.details().equals(last), 5_000));
+        
+        var sent = sink.sent();
+        assertTrue(submitted > 100, () -> "only " + submitted + " updates");
+        // the burst and then the rate for the rest of the minute
+        assertTrue(sent.size() <= BURST + RATE + 1, () -> sent.size() + " sent in a minute");
+        // after the burst sends are spaced out by the rate
+        var interval = Duration.ofMinutes(1).dividedBy(speed).dividedBy((long) RATE);
+        for (int i = BURST + 1; i < sent.size(); i++) {
+            var gap = Duration.ofNanos(sent.get(i).nanos() - sent.get(i - 1).nanos());
+            assertTrue(gap.compareTo(interval.minusMillis(20)) >= 0, () -> "sent " + gap.toMillis() + " ms apart");
+        }
+    }
+    
+    private void settle() throws Exception {
+        // anything queued before this has been drained once it runs
+        executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+    }
+    
+    private static Presence presence(String details, Instant start) {
+        return new Presence(details, "artist", null, "album", start, start.plusSeconds(180));
+    }
+}
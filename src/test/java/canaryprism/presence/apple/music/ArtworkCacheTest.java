@@ -0,0 +1,158 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.InstantSource;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArtworkCacheTest {
+    
+    private static final Duration DWELL = Duration.ofMillis(300);
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void skippingToATrackOfTheSameAlbumKeepsItsUpload() throws InterruptedException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var album = TestArtwork.encoded(400, 400);
+        var first = FakePlayerSource.track(1, 180);
+        var second = FakePlayerSource.track(2, 180);
+        player.artwork(first.persistentId(), album);
+        player.artwork(second.persistentId(), album);
+        var host = FakeImageHost.instant();
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, player, host);
+            var digest = ArtworkCache.digest(album);
+            
+            // the first track starts the shared upload and is skipped within the dwell
+            var skipped = cache.get(new StoredTrack(first.persistentId()), DWELL);
+            TestArtworkCaches.await(() -> cache.waiting(digest) == 1, "the first track waits on the upload");
+            var playing = cache.get(new StoredTrack(second.persistentId()), DWELL);
+            TestArtworkCaches.await(() -> cache.waiting(digest) == 2, "the second track waits on it too");
+            skipped.cancel(false);
+            
+            assertNotNull(playing.orTimeout(10, TimeUnit.SECONDS).join());
+            assertEquals(1, host.uploads());
+        }
+    }
+    
+    @Test
+    void prefetchedTrackOfTheSameAlbumKeepsItsUpload() throws InterruptedException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var album = TestArtwork.encoded(400, 400);
+        var playing_track = FakePlayerSource.track(1, 180);
+        var upcoming_track = FakePlayerSource.track(2, 180);
+        player.artwork(playing_track.persistentId(), album);
+        player.artwork(upcoming_track.persistentId(), album);
+        var host = FakeImageHost.instant();
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, player, host);
+            var digest = ArtworkCache.digest(album);
+            
+            var playing = cache.get(new StoredTrack(playing_track.persistentId()), DWELL);
+            var upcoming = cache.prefetch(new StoredTrack(upcoming_track.persistentId()), lanes.io());
+            TestArtworkCaches.await(() -> cache.waiting(digest) == 2, "both tracks wait on the upload");
+            playing.cancel(false);
+            
+            assertNotNull(upcoming.orTimeout(10, TimeUnit.SECONDS).join());
+            assertEquals(1, host.uploads());
+        }
+    }
+    
+    @Test
+    void uploadIsCalledOffOnceNoTrackWantsIt() throws InterruptedException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var album = TestArtwork.encoded(400, 400);
+        var first = FakePlayerSource.track(1, 180);
+        var second = FakePlayerSource.track(2, 180);
+        player.artwork(first.persistentId(), album);
+        player.artwork(second.persistentId(), album);
+        var host = FakeImageHost.instant();
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, player, host);
+            var digest = ArtworkCache.digest(album);
+            var cancelled = Metrics.get().count(Metrics.Counter.CANCELLED_LOADS);
+            
+            var skipped = cache.get(new StoredTrack(first.persistentId()), DWELL);
+            var also_skipped = cache.get(new StoredTrack(second.persistentId()), DWELL);
+            TestArtworkCaches.await(() -> cache.waiting(digest) == 2, "both tracks wait on the upload");
+            skipped.cancel(false);
+            also_skipped.cancel(false);
+            
+            // the shared upload is called off once the dwell is up
+            TestArtworkCaches.await(() -> Metrics.get().count(Metrics.Counter.CANCELLED_LOADS) > cancelled,
+                    "the upload is called off");
+            assertThrows(CancellationException.class, skipped::join);
+            assertEquals(0, host.uploads());
+            
+            // the called off upload isn't served to the track when it's played again
+            var replayed = cache.get(new StoredTrack(first.persistentId()), Duration.ZERO);
+            assertNotNull(replayed.orTimeout(10, TimeUnit.SECONDS).join());
+            assertEquals(1, host.uploads());
+        }
+    }
+    
+    @Test
+    void failedUploadCompletesTheLoad() {
+        var player = new FakePlayerSource(InstantSource.system());
+        var track = FakePlayerSource.track(1, 180);
+        player.artwork(track.persistentId(), TestArtwork.encoded(400, 400));
+        var host = new FakeImageHost((_) -> CompletableFuture.failedFuture(new IllegalStateException("host is down")));
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, player, host);
+            
+            var load = cache.get(new StoredTrack(track.persistentId()), Duration.ZERO);
+            var e = assertThrows(Exception.class, () -> load.orTimeout(10, TimeUnit.SECONDS).join());
+            assertEquals("host is down", e.getCause().getMessage());
+        }
+    }
+    
+    @Test
+    void legacyCacheIsDeletedOnceMigrated() throws IOException {
+        var legacy = writeLegacyCache();
+        
+        try (var lanes = new ExecutionLanes()) {
+            TestArtworkCaches.open(directory, lanes, new FakePlayerSource(InstantSource.system()), FakeImageHost.instant());
+            assertTrue(Files.notExists(legacy));
+            
+            var reloaded = TestArtworkCaches.open(directory, lanes, new FakePlayerSource(InstantSource.system()), FakeImageHost.instant());
+            assertTrue(reloaded.contains(new StoredTrack(1)));
+        }
+    }
+    
+    @Test
+    void legacyCacheIsKeptWhenTheStoreCantBeWritten() throws IOException {
+        var legacy = writeLegacyCache();
+        // a directory where the store should be can't be read, so it's never written over
+        Files.createDirectory(directory.resolve("image_cache"));
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, new FakePlayerSource(InstantSource.system()), FakeImageHost.instant());
+            assertTrue(cache.contains(new StoredTrack(1)));
+            assertTrue(Files.isRegularFile(legacy.resolve(TrackContainer.formatId(1))));
+        }
+    }
+    
+    private Path writeLegacyCache() throws IOException {
+        var legacy = Files.createDirectory(directory.resolve("images"));
+        Files.writeString(legacy.resolve(TrackContainer.formatId(1)), "https://example.invalid/legacy.jpg");
+        return legacy;
+    }
+}
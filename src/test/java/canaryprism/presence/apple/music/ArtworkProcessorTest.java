@@ -0,0 +1,72 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArtworkProcessorTest {
+    
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 5;
+    
+    @Test
+    void largeArtworkStaysWithinItsMemoryEstimate() throws IOException {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var thread = Thread.currentThread().threadId();
+        
+        var policy = OutputPolicy.Preset.BALANCED.policy();
+        // a sequential blur so all of the work is allocated on this thread
+        var processor = new ArtworkProcessor(new BoxBlurEngine(false), policy, new MemoryBudget(MemoryBudget.defaultBytes()));
+        var data = TestArtwork.encoded(3000, 3000);
+        
+        var subsampling = 3000 / policy.maximumEdge();
+        var estimate = ArtworkProcessor.estimate(3000 / subsampling, 3000 / subsampling, policy.maximumEdge());
+        
+        // the first images fill the raster pool and run before the jit has compiled the kernels
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            processor.optimiseImage(data);
+        
+        // the median of the measured runs is steady state, one that a stray allocation lands in doesn't sway it
+        var runs = new long[MEASURED_RUNS];
+        for (int i = 0; i < runs.length; i++) {
+            var before = threads.getThreadAllocatedBytes(thread);
+            processor.optimiseImage(data);
+            runs[i] = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        Arrays.sort(runs);
+        var median = runs[runs.length / 2];
+        
+        // everything allocated, live at once or not, bounds the peak and has to fit what the budget reserved
+        assertTrue(median <= estimate, () -> median / 1024 + " KiB allocated, estimated " + estimate / 1024 + " KiB");
+        
+        // and it's far below decoding the whole artwork at full size
+        assertTrue(median < 3000L * 3000 * 4, () -> median / 1024 + " KiB allocated");
+    }
+    
+    @Test
+    void budgetHoldsJobsBackUntilThereIsRoom() throws InterruptedException {
+        var budget = new MemoryBudget(1024 * 1024);
+        var first = budget.reserve(768 * 1024);
+        
+        var second = CompletableFuture.runAsync(() -> {
+            try (var _ = budget.reserve(512 * 1024)) {
+                // holds the reservation just long enough to be seen
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertFalse(second.isDone(), "a job ran past a full budget");
+        
+        first.close();
+        second.orTimeout(5, TimeUnit.SECONDS).join();
+        assertTrue(budget.availableBytes() == 1024 * 1024);
+    }
+}
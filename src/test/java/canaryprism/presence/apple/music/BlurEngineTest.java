@@ -0,0 +1,75 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * the faster engines against the convolution the artwork used to be blurred with, a mode only passes if its
+ * backdrop can't be told apart from the original one at presence image sizes
+ */
+class BlurEngineTest {
+    
+    // mean and worst difference of any channel, out of 255
+    private static final double MEAN_TOLERANCE = 2.0;
+    private static final int MAXIMUM_TOLERANCE = 10;
+    
+    private static final int RADIUS = 100;
+    
+    @Test
+    void boxMatchesConvolve() {
+        assertClose(BlurEngine.Mode.BOX, TestArtwork.image(600, 600));
+    }
+    
+    @Test
+    void downsampledMatchesConvolve() {
+        assertClose(BlurEngine.Mode.DOWNSAMPLED, TestArtwork.image(600, 600));
+    }
+    
+    @Test
+    void boxMatchesConvolveOnOddSizes() {
+        assertClose(BlurEngine.Mode.BOX, TestArtwork.image(517, 389));
+    }
+    
+    @Test
+    void sequentialBoxMatchesParallel() {
+        var art = TestArtwork.image(431, 433);
+        var parallel = new BoxBlurEngine(true).blur(art, RADIUS);
+        var sequential = new BoxBlurEngine(false).blur(art, RADIUS);
+        assertEquals(0, difference(parallel, sequential).maximum());
+    }
+    
+    private static void assertClose(BlurEngine.Mode mode, BufferedImage art) {
+        var expected = BlurEngine.Mode.CONVOLVE.engine().blur(art, RADIUS);
+        var actual = mode.engine().blur(art, RADIUS);
+        
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        
+        var difference = difference(expected, actual);
+        assertTrue(difference.mean() <= MEAN_TOLERANCE, () -> mode + " differs from convolve by " + difference.mean() + " on average");
+        assertTrue(difference.maximum() <= MAXIMUM_TOLERANCE, () -> mode + " differs from convolve by up to " + difference.maximum());
+    }
+    
+    private record Difference(double mean, int maximum) {}
+    
+    private static Difference difference(BufferedImage expected, BufferedImage actual) {
+        long total = 0;
+        var maximum = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                var a = expected.getRGB(x, y);
+                var b = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    var channel = Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff));
+                    total += channel;
+                    maximum = Math.max(maximum, channel);
+                }
+            }
+        }
+        return new Difference((double) total / (expected.getWidth() * expected.getHeight() * 3), maximum);
+    }
+}
@@ -0,0 +1,143 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * the kernel's rows against each other and against the java2d drawing the artwork used to be composed with
+ */
+class CompositeKernelTest {
+    
+    // java2d rounds its bilinear weights differently
+    private static final int TOLERANCE = 2;
+    
+    private static final int RADIUS = 100;
+    
+    @Test
+    void matchesJava2dOnSquareArt() {
+        assertMatches(TestArtwork.image(600, 600));
+    }
+    
+    @Test
+    void matchesJava2dOnOddSizes() {
+        assertMatches(TestArtwork.image(601, 601));
+        assertMatches(TestArtwork.image(333, 517));
+    }
+    
+    @Test
+    void matchesJava2dOnWideArt() {
+        assertMatches(TestArtwork.image(1400, 1000));
+    }
+    
+    @Test
+    void matchesJava2dOnBackdropsOfAnotherShape() {
+        var art = TestArtwork.image(431, 431);
+        assertMatches(art, blur(TestArtwork.image(517, 389)));
+        assertMatches(art, blur(TestArtwork.image(211, 640)));
+    }
+    
+    @Test
+    void bandsRunOnTheExecutor() {
+        var art = TestArtwork.image(601, 599);
+        var backdrop = blur(art);
+        var size = 601;
+        var expected = java2d(size, backdrop, art);
+        
+        var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            var canvas = new int[size * size];
+            CompositeKernel.compose(canvas, size, backdrop, art, new CompositeKernel.ScalarRows(), executor);
+            assertClose(expected, canvas, "scalar rows on a pool");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void busyExecutorDoesntHoldUpTheComposite() throws InterruptedException {
+        var art = TestArtwork.image(333, 517);
+        var backdrop = blur(art);
+        var size = 517;
+        var expected = java2d(size, backdrop, art);
+        
+        // the only thread of the executor is the one composing, like artwork processed on the cpu lane
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var canvas = new int[size * size];
+            var done = new CountDownLatch(1);
+            executor.execute(() -> {
+                CompositeKernel.compose(canvas, size, backdrop, art, new CompositeKernel.ScalarRows(), executor);
+                done.countDown();
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS), "composite waited on its own executor");
+            assertClose(expected, canvas, "scalar rows on a busy executor");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static void assertMatches(BufferedImage art) {
+        assertMatches(art, blur(art));
+    }
+    
+    private static void assertMatches(BufferedImage art, BufferedImage backdrop) {
+        var size = Math.max(art.getWidth(), art.getHeight());
+        var expected = java2d(size, backdrop, art);
+        
+        var scalar = compose(size, backdrop, art, new CompositeKernel.ScalarRows());
+        assertClose(expected, scalar, "scalar rows");
+        
+        // the vector rows are only there with jdk.incubator.vector and a wide enough cpu
+        var vector_rows = VectorRows.create();
+        if (vector_rows != null)
+            assertArrayEquals(scalar, compose(size, backdrop, art, vector_rows), "vector rows differ from scalar");
+    }
+    
+    private static int[] compose(int size, BufferedImage backdrop, BufferedImage art, CompositeKernel.Rows rows) {
+        var canvas = new int[size * size];
+        CompositeKernel.compose(canvas, size, backdrop, art, rows, Runnable::run);
+        return canvas;
+    }
+    
+    private static BufferedImage blur(BufferedImage art) {
+        return BlurEngine.Mode.BOX.engine().blur(art, RADIUS);
+    }
+    
+    // what ArtworkProcessor did before the kernel
+    private static int[] java2d(int size, BufferedImage backdrop, BufferedImage art) {
+        var image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        var g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            
+            var scale = (double) size / Math.min(backdrop.getWidth(), backdrop.getHeight());
+            var scaled_width = (int) (backdrop.getWidth() * scale);
+            var scaled_height = (int) (backdrop.getHeight() * scale);
+            g.drawImage(backdrop, (size - scaled_width) / 2, (size - scaled_height) / 2, scaled_width, scaled_height, null);
+            
+            g.drawImage(art, (size - art.getWidth()) / 2, (size - art.getHeight()) / 2, null);
+        } finally {
+            g.dispose();
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+    
+    private static void assertClose(int[] expected, int[] actual, String what) {
+        var difference = 0;
+        for (int i = 0; i < expected.length; i++)
+            for (int shift = 0; shift < 24; shift += 8)
+                difference = Math.max(difference, Math.abs(((actual[i] >> shift) & 0xff) - ((expected[i] >> shift) & 0xff)));
+        var worst = difference;
+        assertTrue(worst <= TOLERANCE, () -> what + " differ from java2d by " + worst);
+    }
+}
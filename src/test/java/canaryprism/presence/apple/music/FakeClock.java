@@ -0,0 +1,22 @@
+package canaryprism.presence.apple.music;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+
+/**
+ * a clock that only moves when the test moves it
+ */
+final class FakeClock implements InstantSource {
+    
+    private volatile Instant now = Instant.parse("2026-01-01T00:00:00Z");
+    
+    @Override
+    public Instant instant() {
+        return now;
+    }
+    
+    void advance(Duration duration) {
+        now = now.plus(duration);
+    }
+}
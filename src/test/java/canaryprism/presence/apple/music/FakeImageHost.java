@@ -0,0 +1,41 @@
+package canaryprism.presence.apple.music;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * answers uploads with whatever the test hands back, counting them
+ */
+final class FakeImageHost implements ImageHost {
+    
+    private final Function<byte[], CompletableFuture<String>> upload;
+    private final AtomicInteger uploads = new AtomicInteger();
+    
+    FakeImageHost(Function<byte[], CompletableFuture<String>> upload) {
+        this.upload = upload;
+    }
+    
+    /**
+     * a host that answers every upload with a new url straight away
+     */
+    static FakeImageHost instant() {
+        var count = new AtomicInteger();
+        return new FakeImageHost((_) -> CompletableFuture.completedFuture("https://example.invalid/" + count.incrementAndGet() + ".jpg"));
+    }
+    
+    @Override
+    public String name() {
+        return "fake";
+    }
+    
+    @Override
+    public CompletableFuture<String> uploadAsync(byte[] data, String name) {
+        uploads.incrementAndGet();
+        return upload.apply(data);
+    }
+    
+    int uploads() {
+        return uploads.get();
+    }
+}
@@ -0,0 +1,182 @@
+package canaryprism.presence.apple.music;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a player the test controls, counting every call made to it. calls can be held until the test lets them go, like
+ * a Music that stopped answering apple events
+ */
+final class FakePlayerSource implements PlayerSource {
+    
+    private final InstantSource clock;
+    
+    private volatile PlayerSnapshot.State state = PlayerSnapshot.State.STOPPED;
+    private volatile PlayerSnapshot.TrackInfo track;
+    // when the track was at position 0 while playing, the position itself while paused
+    private volatile Instant started;
+    private volatile double paused_position;
+    
+    private final Map<Long, byte[]> artworks = new ConcurrentHashMap<>();
+    private volatile List<Long> upcoming = List.of();
+    // calls wait on this while it's set, each releasing a permit of held as it starts waiting
+    private volatile CountDownLatch gate;
+    private final Semaphore held = new Semaphore(0);
+    
+    private final AtomicInteger snapshots = new AtomicInteger();
+    private final AtomicInteger artwork_reads = new AtomicInteger();
+    private final AtomicInteger upcoming_reads = new AtomicInteger();
+    private final AtomicInteger track_lists = new AtomicInteger();
+    
+    FakePlayerSource(InstantSource clock) {
+        this.clock = clock;
+    }
+    
+    static PlayerSnapshot.TrackInfo track(int id, double length) {
+        return new PlayerSnapshot.TrackInfo(id, 0x1000L + id, "track " + id, "artist " + id, "album " + id, length);
+    }
+    
+    void play(PlayerSnapshot.TrackInfo track) {
+        play(track, 0);
+    }
+    
+    void play(PlayerSnapshot.TrackInfo track, double position) {
+        this.track = track;
+        this.started = clock.instant().minusMillis((long) (position * 1000));
+        this.state = PlayerSnapshot.State.PLAYING;
+    }
+    
+    void pause() {
+        paused_position = position();
+        state = PlayerSnapshot.State.PAUSED;
+    }
+    
+    void stop() {
+        state = PlayerSnapshot.State.STOPPED;
+        track = null;
+    }
+    
+    void artwork(long persistent_id, byte[] data) {
+        artworks.put(persistent_id, data);
+    }
+    
+    void upcoming(List<Long> upcoming) {
+        this.upcoming = List.copyOf(upcoming);
+    }
+    
+    /**
+     * makes every call block until {@link #release}
+     */
+    void hold() {
+        gate = new CountDownLatch(1);
+    }
+    
+    void release() {
+        var gate = this.gate;
+        this.gate = null;
+        if (gate != null)
+            gate.countDown();
+    }
+    
+    /**
+     * waits until a call is blocked by {@link #hold}
+     */
+    boolean awaitHeld(long timeout_millis) throws InterruptedException {
+        return held.tryAcquire(timeout_millis, TimeUnit.MILLISECONDS);
+    }
+    
+    private double position() {
+        return switch (state) {
+            case PLAYING -> (track == null) ? 0 : Duration.between(started, clock.instant()).toMillis() / 1000.0;
+            case STOPPED -> 0;
+            default -> paused_position;
+        };
+    }
+    
+    @Override
+    public PlayerSnapshot snapshot() {
+        block();
+        var current = track;
+        var snapshot = new PlayerSnapshot(clock.instant(), state, position(), current);
+        synchronized (snapshots) {
+            snapshots.incrementAndGet();
+            snapshots.notifyAll();
+        }
+        return snapshot;
+    }
+    
+    @Override
+    public Optional<byte[]> artwork(long persistent_id) {
+        artwork_reads.incrementAndGet();
+        block();
+        return Optional.ofNullable(artworks.get(persistent_id));
+    }
+    
+    @Override
+    public List<Long> upcoming(int count) {
+        upcoming_reads.incrementAndGet();
+        block();
+        return upcoming.subList(0, Math.min(count, upcoming.size()));
+    }
+    
+    @Override
+    public List<Long> tracks(String playlist) {
+        track_lists.incrementAndGet();
+        block();
+        return List.copyOf(artworks.keySet());
+    }
+    
+    int snapshots() {
+        return snapshots.get();
+    }
+    
+    /**
+     * waits until {@code count} more snapshots than now were answered
+     */
+    void awaitSnapshots(int count, long timeout_millis) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + timeout_millis;
+        synchronized (snapshots) {
+            var target = snapshots.get() + count;
+            while (snapshots.get() < target) {
+                var left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw new AssertionError("only " + (count - (target - snapshots.get())) + " of " + count + " snapshots answered");
+                snapshots.wait(left);
+            }
+        }
+    }
+    
+    int artworkReads() {
+        return artwork_reads.get();
+    }
+    
+    int upcomingReads() {
+        return upcoming_reads.get();
+    }
+    
+    int calls() {
+        return snapshots.get() + artwork_reads.get() + upcoming_reads.get() + track_lists.get();
+    }
+    
+    private void block() {
+        var gate = this.gate;
+        if (gate == null)
+            return;
+        held.release();
+        try {
+            gate.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PlayerSourceException("interrupted", e);
+        }
+    }
+}
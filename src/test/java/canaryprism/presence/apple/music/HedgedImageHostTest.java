@@ -0,0 +1,141 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgedImageHostTest {
+    
+    private static final String FIRST_URL = "https://example.invalid/first.jpg";
+    private static final String SECOND_URL = "https://example.invalid/second.jpg";
+    private static final Duration BACKOFF = Duration.ofMillis(10);
+    
+    private static final byte[] JPEG = { (byte) 0xff, (byte) 0xd8, 0, 0 };
+    
+    private final HttpClient client = HttpClient.newHttpClient();
+    
+    @Test
+    void slowHostIsHedgedPastItsP90AndLosesTheRace() throws IOException {
+        var slow = new AtomicBoolean();
+        try (var first_server = new StubImageServer((_, _) -> StubImageServer.Response.ok(FIRST_URL)
+                    .after(Duration.ofMillis(slow.get() ? 5_000 : 20)));
+             var second_server = new StubImageServer((_, _) -> StubImageServer.Response.ok(SECOND_URL)
+                    .after(Duration.ofMillis(400)))) {
+            var first = new RecordingHost(new ImageUploader(client, first_server.endpoint(), "key", BACKOFF));
+            var second = new RecordingHost(new ImageUploader(client, second_server.endpoint(), "key", BACKOFF));
+            // the first request on a connection is slower than any after it, it shouldn't make the first host look slow
+            first.uploadAsync(JPEG, "connect").orTimeout(10, TimeUnit.SECONDS).join();
+            var hedged = new HedgedImageHost(List.of(first, second));
+            
+            // the second host gets one upload while it's untried, every other one goes to the faster first host,
+            // which leaves the first with enough samples for a p90
+            for (int i = 0; i < 6; i++)
+                hedged.uploadAsync(JPEG, "warm up").orTimeout(10, TimeUnit.SECONDS).join();
+            assertEquals(1 + 5, first_server.requests().size());
+            
+            slow.set(true);
+            var start = System.nanoTime();
+            var url = hedged.uploadAsync(JPEG, "test").orTimeout(10, TimeUnit.SECONDS).join();
+            var elapsed = Duration.ofNanos(System.nanoTime() - start);
+            
+            assertEquals(SECOND_URL, url);
+            // hedged once the first host ran past its p90, held at the minimum delay, instead of waiting it out
+            assertTrue(elapsed.compareTo(Duration.ofMillis(2_000)) < 0, () -> "took " + elapsed.toMillis() + " ms");
+            assertTrue(elapsed.compareTo(Duration.ofMillis(250 + 400)) >= 0, () -> "hedged after " + elapsed.toMillis() + " ms");
+            assertTrue(first.uploads().getLast().isCancelled(), "the losing upload kept running");
+        }
+    }
+    
+    @Test
+    void failingHostFailsOverStraightAway() throws IOException {
+        try (var first_server = new StubImageServer((_, _) -> StubImageServer.Response.status(500));
+             var second_server = new StubImageServer((_, _) -> StubImageServer.Response.ok(SECOND_URL))) {
+            var hedged = new HedgedImageHost(List.of(
+                    new ImageUploader(client, first_server.endpoint(), "key", BACKOFF),
+                    new ImageUploader(client, second_server.endpoint(), "key", BACKOFF)));
+            
+            var start = System.nanoTime();
+            assertEquals(SECOND_URL, hedged.uploadAsync(JPEG, "test").orTimeout(10, TimeUnit.SECONDS).join());
+            var elapsed = Duration.ofNanos(System.nanoTime() - start);
+            
+            // the first host's retries ran out well before the default hedge delay of 3 seconds
+            assertEquals(4, first_server.requests().size());
+            assertEquals(1, second_server.requests().size());
+            assertTrue(elapsed.compareTo(Duration.ofSeconds(2)) < 0, () -> "took " + elapsed.toMillis() + " ms");
+        }
+    }
+    
+    @Test
+    void breakerOpensOnHostsThatKeepFailing() throws IOException {
+        try (var first_server = new StubImageServer((_, _) -> StubImageServer.Response.status(503));
+             var second_server = new StubImageServer((_, _) -> StubImageServer.Response.ok(SECOND_URL))) {
+            var hedged = new HedgedImageHost(List.of(
+                    new ImageUploader(client, first_server.endpoint(), "key", BACKOFF),
+                    new ImageUploader(client, second_server.endpoint(), "key", BACKOFF)));
+            
+            for (int i = 0; i < 3; i++)
+                assertEquals(SECOND_URL, hedged.uploadAsync(JPEG, "test").orTimeout(10, TimeUnit.SECONDS).join());
+            var failed_requests = first_server.requests().size();
+            
+            // the first host is left out now, so the upload goes straight to the second
+            assertEquals(SECOND_URL, hedged.uploadAsync(JPEG, "test").orTimeout(10, TimeUnit.SECONDS).join());
+            assertEquals(failed_requests, first_server.requests().size());
+            assertEquals(4, second_server.requests().size());
+        }
+    }
+    
+    @Test
+    void rejectionsDontOpenTheBreaker() throws IOException {
+        try (var first_server = new StubImageServer((_, _) -> new StubImageServer.Response(400, "no", Duration.ZERO));
+             var second_server = new StubImageServer((_, _) -> StubImageServer.Response.ok(SECOND_URL))) {
+            var hedged = new HedgedImageHost(List.of(
+                    new ImageUploader(client, first_server.endpoint(), "key", BACKOFF),
+                    new ImageUploader(client, second_server.endpoint(), "key", BACKOFF)));
+            
+            for (int i = 0; i < 5; i++)
+                assertEquals(SECOND_URL, hedged.uploadAsync(JPEG, "test").orTimeout(10, TimeUnit.SECONDS).join());
+            
+            // every upload still tried the first host, which answered every time
+            assertEquals(5, first_server.requests().size());
+        }
+    }
+    
+    /**
+     * keeps the futures of the uploads it passes on, so a test can see what happened to the ones that lost
+     */
+    private static final class RecordingHost implements ImageHost {
+        
+        private final ImageHost host;
+        private final List<CompletableFuture<String>> uploads = new CopyOnWriteArrayList<>();
+        
+        RecordingHost(ImageHost host) {
+            this.host = host;
+        }
+        
+        @Override
+        public String name() {
+            return host.name();
+        }
+        
+        @Override
+        public CompletableFuture<String> uploadAsync(byte[] data, String name) {
+            var upload = host.uploadAsync(data, name);
+            uploads.add(upload);
+            return upload;
+        }
+        
+        List<CompletableFuture<String>> uploads() {
+            return uploads;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageCacheStoreTest {
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void savedEntriesLoadBack() {
+        var path = directory.resolve("image_cache");
+        var store = new ImageCacheStore(path);
+        store.load();
+        assertTrue(store.save(Map.of("a", "https://example.com/a", "b", "https://example.com/b")));
+        assertTrue(store.save(Map.of("a", "https://example.com/a2")));
+        
+        assertEquals(Map.of("a", "https://example.com/a2"), new ImageCacheStore(path).load());
+    }
+    
+    @Test
+    void tornTailIsCutOff() throws IOException {
+        var path = directory.resolve("image_cache");
+        var store = new ImageCacheStore(path);
+        store.load();
+        store.save(Map.of("a", "https://example.com/a"));
+        store.save(Map.of("a", "https://example.com/a", "b", "https://example.com/b"));
+        
+        var size = Files.size(path);
+        try (var channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+        
+        assertEquals(Map.of("a", "https://example.com/a"), new ImageCacheStore(path).load());
+    }
+    
+    @Test
+    void unrecognisedHeaderIsMovedAside() throws IOException {
+        var path = directory.resolve("image_cache");
+        var unknown = new byte[] { 'A', 'M', 'P', 'C', 0, 0, 0, 99, 1, 2, 3 };
+        Files.write(path, unknown);
+        
+        var store = new ImageCacheStore(path);
+        assertTrue(store.load().isEmpty());
+        assertArrayEquals(unknown, Files.readAllBytes(directory.resolve("image_cache.corrupt")));
+        
+        store.save(Map.of("a", "https://example.com/a"));
+        assertEquals(Map.of("a", "https://example.com/a"), new ImageCacheStore(path).load());
+    }
+    
+    @Test
+    void unreadableStoreIsNeverSaved() throws IOException {
+        var path = Files.createDirectory(directory.resolve("image_cache"));
+        
+        var store = new ImageCacheStore(path);
+        assertTrue(store.load().isEmpty());
+        assertFalse(store.save(Map.of("a", "https://example.com/a")));
+        assertTrue(Files.isDirectory(path));
+    }
+    
+    @Test
+    void failedAppendLeavesNoTornRecordBehind() throws IOException {
+        var path = directory.resolve("image_cache");
+        var failed = new AtomicBoolean();
+        var store = new ImageCacheStore(path, (channel, buffer) -> {
+            if (failed.getAndSet(true)) {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                return;
+            }
+            // half a record makes it to disk before the write fails
+            channel.write(buffer.limit(buffer.limit() / 2));
+            throw new IOException("disk full");
+        });
+        store.load();
+        assertTrue(store.save(Map.of("a", "https://example.com/a")));
+        var size = Files.size(path);
+        
+        assertFalse(store.save(Map.of("a", "https://example.com/a", "b", "https://example.com/b")));
+        assertEquals(size, Files.size(path));
+        
+        // the retried records land straight after the good ones and load back
+        assertTrue(store.save(Map.of("a", "https://example.com/a", "b", "https://example.com/b", "c", "https://example.com/c")));
+        assertEquals(Map.of("a", "https://example.com/a", "b", "https://example.com/b", "c", "https://example.com/c"),
+                new ImageCacheStore(path).load());
+    }
+}
@@ -0,0 +1,124 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageUploaderTest {
+    
+    private static final String URL = "https://example.invalid/a.jpg";
+    private static final Duration BACKOFF = Duration.ofMillis(100);
+    
+    // a jpeg as far as the uploader can tell, every byte value so nothing gets mangled on the way
+    private static final byte[] JPEG = new byte[512];
+    
+    static {
+        for (int i = 0; i < JPEG.length; i++)
+            JPEG[i] = (byte) i;
+        JPEG[0] = (byte) 0xff;
+        JPEG[1] = (byte) 0xd8;
+    }
+    
+    private final HttpClient client = HttpClient.newHttpClient();
+    
+    @Test
+    void uploadsTheImageAsABinaryFilePart() throws IOException, InterruptedException {
+        try (var server = new StubImageServer((_, _) -> StubImageServer.Response.ok(URL))) {
+            var uploader = new ImageUploader(client, server.endpoint("?format=json"), "a key&more", BACKOFF);
+            assertEquals(URL, uploader.upload(JPEG, "test"));
+            
+            var request = server.requests().getFirst();
+            assertEquals("format=json&key=a+key%26more", request.uri().getRawQuery());
+            
+            var content_type = request.headers().getFirst("Content-Type");
+            assertTrue(content_type.startsWith("multipart/form-data"), content_type);
+            var boundary = content_type.substring(content_type.indexOf("boundary=") + "boundary=".length());
+            
+            // one part, read as latin-1 so every byte maps to one char and back
+            var body = new String(request.body(), StandardCharsets.ISO_8859_1);
+            var delimiter = "--" + boundary;
+            assertTrue(body.startsWith(delimiter + "\r\n"), body);
+            assertTrue(body.endsWith("\r\n" + delimiter + "--\r\n"), body);
+            var part = body.substring(delimiter.length() + 2, body.length() - delimiter.length() - 6);
+            var headers_end = part.indexOf("\r\n\r\n");
+            var headers = part.substring(0, headers_end).toLowerCase(Locale.ROOT);
+            assertTrue(headers.contains("content-disposition: form-data"), headers);
+            assertTrue(headers.contains("name=\"source\""), headers);
+            assertTrue(headers.contains("filename=\"artwork.jpg\""), headers);
+            assertTrue(headers.contains("content-type: image/jpeg"), headers);
+            assertArrayEquals(JPEG, part.substring(headers_end + 4).getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+    
+    @Test
+    void keyIsAddedToEndpointsWithoutAQuery() throws IOException, InterruptedException {
+        try (var server = new StubImageServer((_, _) -> StubImageServer.Response.ok(URL))) {
+            new ImageUploader(client, server.endpoint(), "key", BACKOFF).upload(JPEG, "test");
+            assertEquals("key=key", server.requests().getFirst().uri().getRawQuery());
+        }
+    }
+    
+    @Test
+    void retriesServerErrorsWithExponentialBackoff() throws IOException, InterruptedException {
+        try (var server = new StubImageServer((index, _) -> (index < 2) ? StubImageServer.Response.status(503) : StubImageServer.Response.ok(URL))) {
+            assertEquals(URL, new ImageUploader(client, server.endpoint(), "key", BACKOFF).upload(JPEG, "test"));
+            
+            var requests = server.requests();
+            assertEquals(3, requests.size());
+            // jittered between the base and twice the base, which doubles with every retry
+            var first = Duration.ofNanos(requests.get(1).nanos() - requests.get(0).nanos());
+            var second = Duration.ofNanos(requests.get(2).nanos() - requests.get(1).nanos());
+            assertTrue(first.compareTo(BACKOFF) >= 0, () -> "first retry after " + first);
+            assertTrue(second.compareTo(BACKOFF.multipliedBy(2)) >= 0, () -> "second retry after " + second);
+            assertTrue(second.compareTo(BACKOFF.multipliedBy(4).plusSeconds(1)) < 0, () -> "second retry after " + second);
+        }
+    }
+    
+    @Test
+    void retriesRateLimits() throws IOException, InterruptedException {
+        try (var server = new StubImageServer((index, _) -> (index == 0) ? StubImageServer.Response.status(429) : StubImageServer.Response.ok(URL))) {
+            assertEquals(URL, new ImageUploader(client, server.endpoint(), "key", BACKOFF).upload(JPEG, "test"));
+            assertEquals(2, server.requests().size());
+        }
+    }
+    
+    @Test
+    void givesUpAfterTheLastAttempt() throws IOException {
+        try (var server = new StubImageServer((_, _) -> StubImageServer.Response.status(500))) {
+            var uploader = new ImageUploader(client, server.endpoint(), "key", Duration.ofMillis(10));
+            assertThrows(IOException.class, () -> uploader.upload(JPEG, "test"));
+            assertEquals(4, server.requests().size());
+        }
+    }
+    
+    @Test
+    void rejectionsAreNotRetried() throws IOException, InterruptedException {
+        try (var server = new StubImageServer((_, _) -> new StubImageServer.Response(400, "not an image", Duration.ZERO))) {
+            assertNull(new ImageUploader(client, server.endpoint(), "key", BACKOFF).upload(JPEG, "test"));
+            assertEquals(1, server.requests().size());
+        }
+    }
+    
+    @Test
+    void cancellingStopsTheRetries() throws IOException, InterruptedException {
+        try (var server = new StubImageServer((_, _) -> StubImageServer.Response.status(503))) {
+            var future = new ImageUploader(client, server.endpoint(), "key", Duration.ofMillis(200)).uploadAsync(JPEG, "test");
+            while (server.requests().isEmpty())
+                TimeUnit.MILLISECONDS.sleep(5);
+            future.cancel(true);
+            TimeUnit.MILLISECONDS.sleep(800);
+            assertEquals(1, server.requests().size());
+        }
+    }
+}
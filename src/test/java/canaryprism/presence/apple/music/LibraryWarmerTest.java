@@ -0,0 +1,122 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.InstantSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LibraryWarmerTest {
+    
+    // more than the in-memory caches hold, of tracks and of artwork
+    private static final int TRACKS = ArtworkCache.MAXIMUM_SIZE + 100;
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void warmingMoreThanTheCacheHoldsKeepsEveryTrack() throws InterruptedException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var tracks = new ArrayList<Long>();
+        for (int i = 0; i < TRACKS; i++) {
+            var id = 0x1000L + i;
+            // a size of its own gives every track different artwork
+            player.artwork(id, TestArtwork.encoded(240 + i % 64, 240 + i / 64));
+            tracks.add(id);
+        }
+        var host = FakeImageHost.instant();
+        
+        try (var lanes = new ExecutionLanes()) {
+            warm(TestArtworkCaches.open(directory, lanes, player, host), player, host, tracks);
+            assertEquals(TRACKS, host.uploads());
+            
+            // starting again on the same store finds every track without asking Music for its artwork
+            var reloaded = TestArtworkCaches.open(directory, lanes, player, host);
+            for (var id : tracks)
+                assertTrue(reloaded.contains(new StoredTrack(id)), () -> "track " + id + " was dropped from the store");
+            var reads = player.artworkReads();
+            warm(reloaded, player, host, tracks);
+            assertEquals(reads, player.artworkReads());
+            assertEquals(TRACKS, host.uploads());
+            
+            // artwork uploaded long before the last save still deduplicates
+            var same_album = 0x1000L + TRACKS;
+            player.artwork(same_album, TestArtwork.encoded(240, 240));
+            warm(reloaded, player, host, List.of(same_album));
+            assertEquals(TRACKS, host.uploads());
+            assertTrue(reloaded.contains(new StoredTrack(same_album)));
+        }
+    }
+    
+    @Test
+    void interruptingLetsTheUploadsInFlightFinishAndSavesThem() throws Exception {
+        var player = new FakePlayerSource(InstantSource.system());
+        // more than the warmer lets into flight, so holding the uploads stalls it before it runs out of tracks
+        var tracks = new ArrayList<Long>();
+        for (int i = 0; i < Runtime.getRuntime().availableProcessors() * 2 + 4; i++) {
+            var id = 0x1000L + i;
+            player.artwork(id, TestArtwork.encoded(240 + i, 240));
+            tracks.add(id);
+        }
+        var requested = new CountDownLatch(1);
+        var held = new ArrayList<CompletableFuture<String>>();
+        var released = new boolean[1];
+        var host = new FakeImageHost((_) -> {
+            synchronized (held) {
+                requested.countDown();
+                var url = "https://example.invalid/" + held.size() + ".jpg";
+                if (released[0])
+                    return CompletableFuture.completedFuture(url);
+                var upload = new CompletableFuture<String>();
+                held.add(upload);
+                return upload.thenApply((_) -> url);
+            }
+        });
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, player, host);
+            var thrown = new CompletableFuture<Throwable>();
+            var warmer = Thread.ofPlatform().start(() -> {
+                try {
+                    warm(cache, player, host, tracks);
+                    thrown.complete(null);
+                } catch (Throwable e) {
+                    thrown.complete(e);
+                }
+            });
+            assertTrue(requested.await(10, TimeUnit.SECONDS));
+            
+            warmer.interrupt();
+            synchronized (held) {
+                released[0] = true;
+                held.forEach((upload) -> upload.complete(null));
+            }
+            warmer.join();
+            
+            assertInstanceOf(InterruptedException.class, thrown.get());
+            assertTrue(player.artworkReads() < tracks.size(), "kept reading tracks after the interrupt");
+            assertTrue(host.uploads() > 0);
+            
+            // every upload that was started made it into the store
+            var reloaded = TestArtworkCaches.open(directory, lanes, player, host);
+            var stored = tracks.stream().filter((id) -> reloaded.contains(new StoredTrack(id))).count();
+            assertEquals(host.uploads(), stored);
+        }
+    }
+    
+    private static void warm(ArtworkCache cache, PlayerSource player, ImageHost host, List<Long> tracks) throws InterruptedException {
+        new LibraryWarmer(player, cache, host, 4, new TokenBucket(1_000_000, 1_000),
+                new PrintStream(OutputStream.nullOutputStream())).run(tracks);
+    }
+}
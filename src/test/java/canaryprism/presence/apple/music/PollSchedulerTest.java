@@ -0,0 +1,114 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PollSchedulerTest {
+    
+    private static final PollingPolicy POLICY = PollingPolicy.Preset.BALANCED.policy();
+    
+    private FakeClock clock;
+    private FakePlayerSource player;
+    private PollScheduler scheduler;
+    
+    @BeforeEach
+    void setUp() {
+        clock = new FakeClock();
+        player = new FakePlayerSource(clock);
+        scheduler = new PollScheduler(POLICY, clock);
+    }
+    
+    // polls once and lets the delay it asks for pass
+    private Duration poll() {
+        var delay = scheduler.nextDelay(player.snapshot());
+        clock.advance(delay);
+        return delay;
+    }
+    
+    @Test
+    void steadyPlaybackPollsAtTheInterval() {
+        player.play(FakePlayerSource.track(1, 180));
+        for (int i = 0; i < 5; i++)
+            assertEquals(POLICY.interval(), poll());
+    }
+    
+    @Test
+    void skipBoostsPollingForAWhile() {
+        player.play(FakePlayerSource.track(1, 180));
+        assertEquals(POLICY.interval(), poll());
+        
+        player.play(FakePlayerSource.track(2, 180));
+        var boosted = Duration.ZERO;
+        while (boosted.compareTo(POLICY.boost()) < 0) {
+            assertEquals(POLICY.minimumInterval(), poll());
+            boosted = boosted.plus(POLICY.minimumInterval());
+        }
+        assertEquals(POLICY.interval(), poll());
+    }
+    
+    @Test
+    void wakesUpRightAfterTheTrackEnds() {
+        player.play(FakePlayerSource.track(1, 180), 177);
+        assertEquals(Duration.ofSeconds(3).plus(POLICY.endGrace()), poll());
+        
+        // the next track starting at the end of the last one isn't the user, so it doesn't boost
+        player.play(FakePlayerSource.track(2, 180));
+        assertEquals(POLICY.interval(), poll());
+    }
+    
+    @Test
+    void neverWakesFasterThanTheMinimumInterval() {
+        player.play(FakePlayerSource.track(1, 180), 179.9);
+        assertEquals(POLICY.minimumInterval(), poll());
+    }
+    
+    @Test
+    void idleBacksOffExponentially() {
+        player.stop();
+        var delays = List.of(poll(), poll(), poll(), poll(), poll(), poll());
+        assertEquals(List.of(Duration.ofSeconds(5), Duration.ofSeconds(10), Duration.ofSeconds(20), Duration.ofSeconds(40),
+                POLICY.maximumIdleInterval(), POLICY.maximumIdleInterval()), delays);
+    }
+    
+    @Test
+    void pausingBoostsBeforeBackingOff() {
+        player.play(FakePlayerSource.track(1, 180));
+        poll();
+        
+        player.pause();
+        var boost_end = clock.instant().plus(POLICY.boost());
+        while (clock.instant().isBefore(boost_end))
+            assertEquals(POLICY.minimumInterval(), poll());
+        assertEquals(POLICY.interval(), poll());
+        assertEquals(POLICY.interval().multipliedBy(2), poll());
+    }
+    
+    @Test
+    void resumingResetsTheBackoff() {
+        player.stop();
+        for (int i = 0; i < 5; i++)
+            poll();
+        
+        player.play(FakePlayerSource.track(1, 180));
+        assertEquals(POLICY.minimumInterval(), poll());
+    }
+    
+    @Test
+    void failedPollsBackOffFromTheConfiguredInterval() {
+        var efficient = PollingPolicy.Preset.EFFICIENT.policy();
+        var scheduler = new PollScheduler(efficient, clock);
+        player.play(FakePlayerSource.track(1, 180));
+        scheduler.nextDelay(player.snapshot());
+        
+        var delays = List.of(scheduler.failedDelay(), scheduler.failedDelay(), scheduler.failedDelay(), scheduler.failedDelay());
+        assertEquals(List.of(Duration.ofSeconds(10), Duration.ofSeconds(20), Duration.ofSeconds(40), Duration.ofSeconds(80)), delays);
+        
+        // a poll that works again goes straight back to the interval
+        assertEquals(efficient.interval(), scheduler.nextDelay(player.snapshot()));
+    }
+}
@@ -0,0 +1,132 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.InstantSource;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PresenceLoopTest {
+    
+    private static final String FALLBACK_IMAGE = "https://example.invalid/fallback.png";
+    
+    // fast enough for a test to see plenty of polls in a fraction of a second
+    private static final PollingPolicy POLICY = new PollingPolicy(Duration.ofMillis(20), Duration.ofMillis(10),
+            Duration.ofMillis(10), Duration.ofMillis(50), Duration.ofMillis(40), 2);
+    
+    private static final int POLLS_PER_STATE = 5;
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void pollMakesOneCallToMusic() throws InterruptedException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var counting = new CountingPlayerSource(player);
+        var sink = new RecordingPresenceSink();
+        for (int i = 1; i <= 3; i++)
+            player.artwork(FakePlayerSource.track(i, 180).persistentId(), TestArtwork.encoded(400 + i, 400));
+        
+        var metrics = Metrics.get();
+        var polls_before = metrics.count(Metrics.Counter.POLLS);
+        var calls_before = metrics.count(Metrics.Counter.IPC_CALLS);
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, counting, FakeImageHost.instant());
+            try (var loop = new PresenceLoop(lanes, counting, sink, cache, POLICY, InstantSource.system(), 1, Duration.ZERO, FALLBACK_IMAGE)) {
+                loop.start();
+                player.play(FakePlayerSource.track(1, 180));
+                assertNotNull(sink.await((presence) -> presence.details().equals("track 1"), 10_000));
+                player.awaitSnapshots(POLLS_PER_STATE, 10_000);
+                player.play(FakePlayerSource.track(2, 180));
+                assertNotNull(sink.await((presence) -> presence.details().equals("track 2"), 10_000));
+                player.awaitSnapshots(POLLS_PER_STATE, 10_000);
+                player.pause();
+                assertNotNull(sink.awaitClear(10_000));
+                player.awaitSnapshots(POLLS_PER_STATE, 10_000);
+                player.play(FakePlayerSource.track(3, 180));
+                assertNotNull(sink.await((presence) -> presence.details().equals("track 3"), 10_000));
+                player.awaitSnapshots(POLLS_PER_STATE, 10_000);
+            }
+        }
+        
+        var polls = metrics.count(Metrics.Counter.POLLS) - polls_before;
+        var calls = metrics.count(Metrics.Counter.IPC_CALLS) - calls_before;
+        assertTrue(polls >= 4 * POLLS_PER_STATE, () -> "only " + polls + " polls");
+        
+        // one batched snapshot per poll, the artwork reads and look ahead running alongside aren't the poll's
+        assertEquals(polls, calls, () -> calls + " calls counted in " + polls + " polls");
+        assertTrue(player.snapshots() <= polls + 1, () -> player.snapshots() + " snapshots in " + polls + " polls");
+        // on top of that only a single artwork read and look ahead for each of the three tracks
+        assertTrue(player.artworkReads() <= 3, () -> player.artworkReads() + " artwork reads");
+        assertTrue(player.upcomingReads() <= 3, () -> player.upcomingReads() + " upcoming reads");
+        
+        assertEquals(List.of("track 1", "track 2", "track 3"), sink.updates()
+                .stream()
+                .map(Presence::details)
+                .distinct()
+                .toList());
+    }
+    
+    @Test
+    void artworkReplacesTheFallbackOnceUploaded() throws InterruptedException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var counting = new CountingPlayerSource(player);
+        var sink = new RecordingPresenceSink();
+        var track = FakePlayerSource.track(1, 180);
+        player.artwork(track.persistentId(), TestArtwork.encoded(400, 400));
+        
+        try (var lanes = new ExecutionLanes()) {
+            var cache = TestArtworkCaches.open(directory, lanes, counting, FakeImageHost.instant());
+            try (var loop = new PresenceLoop(lanes, counting, sink, cache, POLICY, InstantSource.system(), 1, Duration.ZERO, FALLBACK_IMAGE)) {
+                loop.start();
+                player.play(track);
+                assertNotNull(sink.await((presence) -> !FALLBACK_IMAGE.equals(presence.largeImage()), 10_000));
+            }
+        }
+    }
+    
+    @Test
+    void callbacksKeepGoingWhileMusicStalls() throws InterruptedException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var counting = new CountingPlayerSource(player);
+        var sink = new RecordingPresenceSink();
+        
+        try (var lanes = new ExecutionLanes()) {
+            // what Main runs on the lane, the discord callbacks on a fixed rate and activity updates between them
+            var queue = new ActivityQueue(sink, lanes.callbacks(), new TokenBucket(15.0 / 60, 5),
+                    Duration.ofMillis(PresenceLoop.SEEK_TOLERANCE_MILLIS));
+            
+            var cache = TestArtworkCaches.open(directory, lanes, counting, FakeImageHost.instant());
+            try (var loop = new PresenceLoop(lanes, counting, queue, cache, POLICY, InstantSource.system(), 1, Duration.ZERO, FALLBACK_IMAGE)) {
+                loop.start();
+                player.play(FakePlayerSource.track(1, 180));
+                assertNotNull(sink.await((presence) -> presence != null, 10_000));
+                
+                // a poll is now stuck in Music until the end of the test
+                player.hold();
+                try {
+                    assertTrue(player.awaitHeld(10_000), "no poll reached Music");
+                    
+                    var ticks = new CountDownLatch(10);
+                    var callbacks = lanes.callbacks().scheduleAtFixedRate(ticks::countDown, 0, 20, TimeUnit.MILLISECONDS);
+                    assertTrue(ticks.await(10, TimeUnit.SECONDS), "callbacks stalled behind the poll");
+                    callbacks.cancel(false);
+                    
+                    queue.update(new Presence("sent while polling is stuck", "artist", null, "album", null, null));
+                    assertNotNull(sink.await((presence) -> presence.details().equals("sent while polling is stuck"), 10_000));
+                } finally {
+                    player.release();
+                }
+            }
+        }
+    }
+}
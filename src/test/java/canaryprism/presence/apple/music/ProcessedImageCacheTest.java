@@ -0,0 +1,48 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessedImageCacheTest {
+    
+    private static final String DIGEST = "0123456789abcdef".repeat(4);
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void imagesLoadBackWithTheSameSettings() {
+        var cache = new ProcessedImageCache(directory, "box-balanced", Long.MAX_VALUE);
+        cache.load();
+        cache.put(DIGEST, new byte[] { 1, 2, 3 });
+        
+        var reopened = new ProcessedImageCache(directory, "box-balanced", Long.MAX_VALUE);
+        reopened.load();
+        assertArrayEquals(new byte[] { 1, 2, 3 }, reopened.get(DIGEST).orElseThrow());
+    }
+    
+    @Test
+    void otherSettingsMissImagesProcessedBefore() {
+        var cache = new ProcessedImageCache(directory, "box-balanced", Long.MAX_VALUE);
+        cache.load();
+        cache.put(DIGEST, new byte[] { 1, 2, 3 });
+        
+        var small = new ProcessedImageCache(directory, "box-small", Long.MAX_VALUE);
+        small.load();
+        assertTrue(small.get(DIGEST).isEmpty(), "served an image encoded for another output");
+        
+        var convolve = new ProcessedImageCache(directory, "convolve-balanced", Long.MAX_VALUE);
+        convolve.load();
+        assertTrue(convolve.get(DIGEST).isEmpty(), "served an image blurred by another engine");
+        
+        // both variants live side by side in the same directory
+        small.put(DIGEST, new byte[] { 4 });
+        assertArrayEquals(new byte[] { 4 }, small.get(DIGEST).orElseThrow());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(DIGEST).orElseThrow());
+    }
+}
@@ -0,0 +1,80 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.InstantSource;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecordedSessionTest {
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void eventsReadBackAsWritten() throws IOException {
+        var track = FakePlayerSource.track(1, 180);
+        // a track without a name, artist or album, the way Music reports some streams
+        var unnamed = new PlayerSnapshot.TrackInfo(2, 0x1002L, null, null, null, 240.5);
+        var events = List.of(
+                new RecordedSession.Event(0, PlayerSnapshot.State.PLAYING, 12.5, track, List.of(0x1002L, 0x1003L)),
+                new RecordedSession.Event(4_000, PlayerSnapshot.State.PAUSED, 16.5, track, List.of()),
+                new RecordedSession.Event(9_000, PlayerSnapshot.State.PLAYING, 0, unnamed, List.of()),
+                new RecordedSession.Event(12_000, PlayerSnapshot.State.STOPPED, 0, null, List.of()));
+        
+        try (var writer = Files.newBufferedWriter(directory.resolve(RecordedSession.EVENTS), StandardCharsets.UTF_8)) {
+            for (var event : events)
+                RecordedSession.append(writer, event);
+        }
+        
+        var session = RecordedSession.read(directory);
+        assertEquals(events, session.events());
+        assertEquals(12_000, session.lengthMillis());
+    }
+    
+    @Test
+    void recordingReadsBackWithItsArtwork() throws IOException {
+        var player = new FakePlayerSource(InstantSource.system());
+        var track = FakePlayerSource.track(1, 180);
+        var artwork = TestArtwork.encoded(240, 240);
+        player.artwork(track.persistentId(), artwork);
+        player.upcoming(List.of(0x1002L, 0x1003L));
+        player.play(track, 30);
+        
+        // a recording that's over as soon as it starts still writes the first and the last state
+        new SessionRecorder(player, directory, Duration.ofMillis(1)).record(Duration.ZERO);
+        
+        var session = RecordedSession.read(directory);
+        assertEquals(2, session.events().size());
+        var first = session.events().getFirst();
+        assertEquals(PlayerSnapshot.State.PLAYING, first.state());
+        assertEquals(track, first.track());
+        assertEquals(List.of(0x1002L, 0x1003L), first.upcoming());
+        assertEquals(track, session.events().getLast().track());
+        assertTrue(session.events().getLast().upcoming().isEmpty());
+        
+        assertArrayEquals(artwork, session.artwork(track.persistentId()).orElseThrow());
+        assertTrue(session.artwork(0x1002L).isEmpty());
+    }
+    
+    @Test
+    void invalidEventIsReported() throws IOException {
+        Files.writeString(directory.resolve(RecordedSession.EVENTS), """
+                {"at":0,"state":"PLAYING","position":0}
+                {"at":10,"state":"SKIPPING","position":0}
+                """);
+        
+        var e = assertThrows(IOException.class, () -> RecordedSession.read(directory));
+        assertTrue(e.getMessage().contains("SKIPPING"), e.getMessage());
+    }
+}
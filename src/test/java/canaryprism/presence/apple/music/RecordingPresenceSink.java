@@ -0,0 +1,69 @@
+package canaryprism.presence.apple.music;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * stands in for discord, remembering everything sent and when
+ */
+final class RecordingPresenceSink implements PresenceSink {
+    
+    /**
+     * @param presence {@code null} for a clear
+     */
+    record Sent(long nanos, String thread, Presence presence) {}
+    
+    private final List<Sent> sent = new ArrayList<>();
+    
+    @Override
+    public synchronized void update(Presence presence) {
+        sent.add(new Sent(System.nanoTime(), Thread.currentThread().getName(), presence));
+        notifyAll();
+    }
+    
+    @Override
+    public synchronized void clear() {
+        sent.add(new Sent(System.nanoTime(), Thread.currentThread().getName(), null));
+        notifyAll();
+    }
+    
+    synchronized List<Sent> sent() {
+        return List.copyOf(sent);
+    }
+    
+    synchronized List<Presence> updates() {
+        return sent.stream()
+                .map(Sent::presence)
+                .filter((presence) -> presence != null)
+                .toList();
+    }
+    
+    /**
+     * waits until something matching was sent
+     */
+    synchronized Presence await(Predicate<Presence> matching, long timeout_millis) throws InterruptedException {
+        var sent = awaitSent((entry) -> entry.presence() != null && matching.test(entry.presence()), timeout_millis);
+        return (sent == null) ? null : sent.presence();
+    }
+    
+    /**
+     * waits until the presence was cleared
+     */
+    synchronized Sent awaitClear(long timeout_millis) throws InterruptedException {
+        return awaitSent((entry) -> entry.presence() == null, timeout_millis);
+    }
+    
+    private Sent awaitSent(Predicate<Sent> matching, long timeout_millis) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + timeout_millis;
+        while (true) {
+            for (var entry : sent)
+                if (matching.test(entry))
+                    return entry;
+            var left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return null;
+            wait(left);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ReplayPlayerSourceTest {
+    
+    private static final PlayerSnapshot.TrackInfo FIRST = FakePlayerSource.track(1, 180);
+    private static final PlayerSnapshot.TrackInfo SECOND = FakePlayerSource.track(2, 200);
+    
+    private static final RecordedSession SESSION = new RecordedSession(Path.of("unused"), List.of(
+            new RecordedSession.Event(1_000, PlayerSnapshot.State.PLAYING, 0, FIRST, List.of(0x1002L, 0x1003L, 0x1004L)),
+            // a seek within the first track, recorded without the upcoming tracks
+            new RecordedSession.Event(5_000, PlayerSnapshot.State.PLAYING, 60, FIRST, List.of()),
+            new RecordedSession.Event(8_000, PlayerSnapshot.State.PAUSED, 63, FIRST, List.of()),
+            new RecordedSession.Event(10_000, PlayerSnapshot.State.PLAYING, 0, SECOND, List.of(0x1003L)),
+            new RecordedSession.Event(20_000, PlayerSnapshot.State.PLAYING, 10, SECOND, List.of())));
+    
+    private FakeClock clock;
+    private ReplayPlayerSource source;
+    
+    @BeforeEach
+    void setUp() {
+        clock = new FakeClock();
+        source = new ReplayPlayerSource(SESSION, 10, clock);
+    }
+    
+    @Test
+    void eventAtFindsTheLatestEventSoFar() {
+        assertEquals(-1, source.eventAt(0));
+        assertEquals(-1, source.eventAt(999));
+        assertEquals(0, source.eventAt(1_000));
+        assertEquals(0, source.eventAt(4_999));
+        assertEquals(1, source.eventAt(5_000));
+        assertEquals(3, source.eventAt(19_999));
+        assertEquals(4, source.eventAt(Long.MAX_VALUE));
+    }
+    
+    @Test
+    void virtualClockRunsAtTheReplaySpeed() {
+        assertEquals(0, source.elapsedMillis());
+        clock.advance(Duration.ofMillis(650));
+        assertEquals(6_500, source.elapsedMillis());
+        assertEquals(clock.instant().minusMillis(650).plusMillis(6_500), source.instant());
+    }
+    
+    @Test
+    void snapshotFollowsTheSession() {
+        assertEquals(PlayerSnapshot.State.STOPPED, source.snapshot().state());
+        
+        // the position is carried forward from the seek while playing
+        clock.advance(Duration.ofMillis(650));
+        var playing = source.snapshot();
+        assertEquals(PlayerSnapshot.State.PLAYING, playing.state());
+        assertEquals(FIRST, playing.track());
+        assertEquals(61.5, playing.position(), 1e-9);
+        
+        // and held while paused
+        clock.advance(Duration.ofMillis(150));
+        var paused = source.snapshot();
+        assertEquals(PlayerSnapshot.State.PAUSED, paused.state());
+        assertEquals(63, paused.position(), 1e-9);
+        
+        // the player stops once the session is over
+        clock.advance(Duration.ofMillis(1_300));
+        var over = source.snapshot();
+        assertEquals(PlayerSnapshot.State.STOPPED, over.state());
+        assertNull(over.track());
+    }
+    
+    @Test
+    void upcomingComesFromWhereTheTrackStarted() {
+        assertEquals(List.of(), source.upcoming(5));
+        
+        clock.advance(Duration.ofMillis(100));
+        assertEquals(List.of(0x1002L, 0x1003L, 0x1004L), source.upcoming(5));
+        assertEquals(List.of(0x1002L, 0x1003L), source.upcoming(2));
+        
+        // past the seek the first track's upcoming tracks still apply
+        clock.advance(Duration.ofMillis(500));
+        assertEquals(List.of(0x1002L, 0x1003L, 0x1004L), source.upcoming(5));
+        
+        clock.advance(Duration.ofMillis(1_200));
+        assertEquals(List.of(0x1003L), source.upcoming(5));
+    }
+}
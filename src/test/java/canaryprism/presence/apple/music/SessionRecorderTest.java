@@ -0,0 +1,47 @@
+package canaryprism.presence.apple.music;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionRecorderTest {
+    
+    private static final PlayerSnapshot.TrackInfo TRACK = FakePlayerSource.track(1, 180);
+    
+    private static final RecordedSession.Event PLAYING = new RecordedSession.Event(1_000, PlayerSnapshot.State.PLAYING, 10, TRACK, List.of());
+    private static final RecordedSession.Event PAUSED = new RecordedSession.Event(1_000, PlayerSnapshot.State.PAUSED, 10, TRACK, List.of());
+    
+    @Test
+    void playingCarriesThePositionForward() {
+        assertTrue(SessionRecorder.predicts(PLAYING, snapshot(PlayerSnapshot.State.PLAYING, 15, TRACK), 6_000));
+        // polls don't land exactly on the second, small drift isn't a seek
+        assertTrue(SessionRecorder.predicts(PLAYING, snapshot(PlayerSnapshot.State.PLAYING, 15.8, TRACK), 6_000));
+    }
+    
+    @Test
+    void seekIsNotPredicted() {
+        assertFalse(SessionRecorder.predicts(PLAYING, snapshot(PlayerSnapshot.State.PLAYING, 60, TRACK), 6_000));
+        assertFalse(SessionRecorder.predicts(PLAYING, snapshot(PlayerSnapshot.State.PLAYING, 10, TRACK), 6_000));
+    }
+    
+    @Test
+    void pausedKeepsItsPosition() {
+        assertTrue(SessionRecorder.predicts(PAUSED, snapshot(PlayerSnapshot.State.PAUSED, 10, TRACK), 60_000));
+        assertFalse(SessionRecorder.predicts(PAUSED, snapshot(PlayerSnapshot.State.PAUSED, 70, TRACK), 60_000));
+    }
+    
+    @Test
+    void stateOrTrackChangesAreNotPredicted() {
+        assertFalse(SessionRecorder.predicts(PLAYING, snapshot(PlayerSnapshot.State.PAUSED, 15, TRACK), 6_000));
+        assertFalse(SessionRecorder.predicts(PLAYING, snapshot(PlayerSnapshot.State.PLAYING, 15, FakePlayerSource.track(2, 180)), 6_000));
+        assertFalse(SessionRecorder.predicts(PLAYING, snapshot(PlayerSnapshot.State.STOPPED, 0, null), 6_000));
+    }
+    
+    private static PlayerSnapshot snapshot(PlayerSnapshot.State state, double position, PlayerSnapshot.TrackInfo track) {
+        return new PlayerSnapshot(Instant.EPOCH, state, position, track);
+    }
+}
@@ -0,0 +1,42 @@
+package canaryprism.presence.apple.music;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+final class TestArtwork {
+    
+    private TestArtwork() {}
+    
+    // hard edges and flat areas, the worst case for approximating a gaussian
+    static BufferedImage image(int width, int height) {
+        var random = new Random(((long) width << 32) | height);
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        var g = image.createGraphics();
+        try {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.fillRect(0, 0, width, height);
+            for (int i = 0; i < 60; i++) {
+                g.setColor(new Color(random.nextInt(0xffffff)));
+                g.fillRect(random.nextInt(width), random.nextInt(height), random.nextInt(width / 3 + 1), random.nextInt(height / 3 + 1));
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+    
+    // album art from the Music library is almost always jpeg
+    static byte[] encoded(int width, int height) {
+        try (var baos = new ByteArrayOutputStream()) {
+            ImageIO.write(image(width, height), "jpg", baos);
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package canaryprism.presence.apple.music;
+
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+final class TestArtworkCaches {
+    
+    private TestArtworkCaches() {}
+    
+    /**
+     * a loaded cache with box blurred default output, keeping everything it stores under {@code directory}
+     */
+    static ArtworkCache open(Path directory, ExecutionLanes lanes, PlayerSource player, ImageHost host) {
+        var cache = new ArtworkCache(player, new ArtworkProcessor(BlurEngine.Mode.BOX.engine()), host,
+                new ImageCacheStore(directory.resolve("image_cache")),
+                new ProcessedImageCache(directory.resolve("processed"), "box-default", Long.MAX_VALUE), lanes.io(), lanes.cpu());
+        cache.load(directory.resolve("images"));
+        return cache;
+    }
+    
+    /**
+     * waits for something the cache does on another lane, failing the test if it doesn't happen within 10 seconds
+     */
+    static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        var deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline)
+                fail("timed out waiting until " + what);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package canaryprism.presence.apple.music;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a local image host answering uploads the way the test or benchmark says, with injected delays and errors
+ */
+final class StubImageServer implements AutoCloseable {
+    
+    record Request(long nanos, URI uri, Headers headers, byte[] body) {}
+    
+    record Response(int status, String body, Duration delay) {
+        
+        static Response ok(String url) {
+            return new Response(200, """
+                    {"image":{"url":"%s"}}""".formatted(url), Duration.ZERO);
+        }
+        
+        static Response status(int status) {
+            return new Response(status, "{}", Duration.ZERO);
+        }
+        
+        Response after(Duration delay) {
+            return new Response(status, body, delay);
+        }
+    }
+    
+    interface Responder {
+        
+        /**
+         * @param index how many requests came before this one
+         */
+        Response respond(int index, Request request);
+    }
+    
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Request> requests = new ArrayList<>();
+    private int request_count;
+    
+    StubImageServer(Responder responder) throws IOException {
+        this(responder, true);
+    }
+    
+    /**
+     * @param keep_requests whether requests are read whole and kept for {@link #requests}. benchmarks leave it off so
+     *                      uploading millions of images doesn't fill the heap and the stub doesn't add a copy of every
+     *                      body to what an upload allocates, the responder then sees requests without their bodies
+     */
+    StubImageServer(Responder responder, boolean keep_requests) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", (exchange) -> {
+            try (exchange) {
+                byte[] request_body;
+                if (keep_requests) {
+                    request_body = exchange.getRequestBody().readAllBytes();
+                } else {
+                    exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+                    request_body = new byte[0];
+                }
+                var request = new Request(System.nanoTime(), exchange.getRequestURI(), exchange.getRequestHeaders(), request_body);
+                int index;
+                synchronized (requests) {
+                    index = request_count++;
+                    if (keep_requests)
+                        requests.add(request);
+                }
+                var response = responder.respond(index, request);
+                if (response.delay().isPositive())
+                    TimeUnit.MILLISECONDS.sleep(response.delay().toMillis());
+                var body = response.body().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(response.status(), body.length);
+                exchange.getResponseBody().write(body);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // delayed responses mustn't hold up the ones behind them
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    URI endpoint() {
+        return endpoint("");
+    }
+    
+    URI endpoint(String query) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/api/1/upload" + query);
+    }
+    
+    List<Request> requests() {
+        synchronized (requests) {
+            return List.copyOf(requests);
+        }
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}